@@ -0,0 +1,57 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pl.geek.tewu.gmail_attachments_extractor.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Digests of attachment content computed while it's streamed, at several sizes of written (or read) chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+    public static final int DATA_SIZE = 8 * 1024 * 1024;
+
+    @Param({"1024", "8192", "65536"})
+    public int bufferSize;
+
+    @Param({"SHA-1,MD5", "SHA-256"})
+    public String algorithms;
+
+    private byte[] data;
+    private byte[] buffer;
+
+
+    @Setup
+    public void setup() {
+        data = SyntheticMessages.randomBytes(DATA_SIZE);
+        buffer = new byte[bufferSize];
+    }
+
+
+    @Benchmark
+    public Map<String, String> digestingOutputStream() throws IOException {
+        try (DigestUtils.DigestingOutputStream out = new DigestUtils.DigestingOutputStream(SyntheticMessages.NULL_OUTPUT_STREAM, algorithms.split(","))) {
+            for (int off = 0; off < data.length; off += bufferSize)
+                out.write(data, off, Math.min(bufferSize, data.length - off));
+            return out.getDigestsHex();
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> digestingInputStream() throws IOException {
+        try (DigestUtils.DigestingInputStream in = new DigestUtils.DigestingInputStream(new ByteArrayInputStream(data), algorithms.split(","))) {
+            while (in.read(buffer, 0, buffer.length) != -1) ;
+            return in.getDigestsHex();
+        }
+    }
+}
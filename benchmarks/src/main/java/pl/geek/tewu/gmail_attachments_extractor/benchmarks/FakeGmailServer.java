@@ -0,0 +1,570 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.gmail.model.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import pl.geek.tewu.gmail_attachments_extractor.GmailInit;
+import pl.geek.tewu.gmail_attachments_extractor.QuotaRateLimiter;
+
+import javax.mail.MessagingException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * FakeGmailServer is a local HTTP server, that implements the subset of Gmail API used by the extractor:
+ * messages.list/get/insert/modify/batchModify, messages.attachments.get, labels.list/create, getProfile,
+ * batch requests and resumable media upload. It serves a SyntheticMailbox, and can add latency to every request,
+ * and reject a fraction of requests with 429 (rate limit exceeded), like Gmail does.
+ * Calls of every API method, and bytes sent and received, are counted.
+ */
+public class FakeGmailServer implements Closeable {
+    public static final String SERVICE_PATH = "/gmail/v1/users/";
+    public static final String UPLOAD_PATH = "/upload/gmail/v1/users/";
+    public static final String BATCH_PATH = "/batch/gmail/v1";
+    private static final Pattern BOUNDARY_REGEX = Pattern.compile("boundary=\"?([^\";]+)\"?");
+    private static final Pattern CONTENT_RANGE_REGEX = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+    private static final int MAX_PAGE_SIZE = 500;
+
+    private final SyntheticMailbox mailbox;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double rateLimitErrorRate;
+    private final Random random = new Random(7);
+
+    private final Map<String, Label> labels = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLabelNum = new AtomicInteger(1);
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUploadNum = new AtomicInteger(1);
+    private final Map<String, Message> insertedByMessageId = new ConcurrentHashMap<>();
+    private final AtomicInteger nextInsertedNum = new AtomicInteger(1);
+
+    // Statistics
+    private final Map<String, AtomicLong> apiCalls = new ConcurrentSkipListMap<>();
+    private final AtomicLong httpRequests = new AtomicLong();
+    private final AtomicLong rateLimitErrors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong insertedCount = new AtomicLong();
+    private final AtomicLong insertedBytes = new AtomicLong();
+
+
+    public FakeGmailServer(SyntheticMailbox mailbox, long latencyMillis, double rateLimitErrorRate) throws IOException {
+        this.mailbox = mailbox;
+        this.latencyMillis = latencyMillis;
+        this.rateLimitErrorRate = rateLimitErrorRate;
+        for (String systemLabel : new String[]{"INBOX", "SENT", "TRASH", "SPAM", "UNREAD"})
+            labels.put(systemLabel, new Label().setId(systemLabel).setName(systemLabel).setType("system"));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-gmail-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Get root URL of the server, to be used instead of the Gmail API root URL.
+     */
+    public String getRootUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    public Map<String, Long> getApiCalls() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        apiCalls.forEach((name, count) -> result.put(name, count.get()));
+        return result;
+    }
+
+    public long getHttpRequests() {
+        return httpRequests.get();
+    }
+
+    public long getRateLimitErrors() {
+        return rateLimitErrors.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getInsertedCount() {
+        return insertedCount.get();
+    }
+
+    public long getInsertedBytes() {
+        return insertedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * A request, or a response, of the fake API - either received over HTTP directly, or as a part of batch request.
+     */
+    private static class Request {
+        final String method;
+        final GenericUrl url;
+        final Map<String, String> headers;  // Lower case names
+        final InputStream body;
+
+        Request(String method, GenericUrl url, Map<String, String> headers, InputStream body) {
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static class Response {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final BodyWriter body;  // null if the response has no body
+
+        Response(int status, BodyWriter body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static Response json(int status, GenericJson content) {
+            byte[] bytes = toJsonBytes(content);
+            Response response = new Response(status, out -> out.write(bytes));
+            response.headers.put("Content-Type", "application/json; charset=UTF-8");
+            return response;
+        }
+
+        static Response error(int status, String reason, String message) {
+            GenericJson errorInfo = new GenericJson();
+            errorInfo.put("domain", "global");
+            errorInfo.put("reason", reason);
+            errorInfo.put("message", message);
+            GenericJson error = new GenericJson();
+            error.put("code", status);
+            error.put("message", message);
+            error.put("errors", Collections.singletonList(errorInfo));
+            GenericJson container = new GenericJson();
+            container.put("error", error);
+            return json(status, container);
+        }
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            httpRequests.incrementAndGet();
+            Map<String, String> headers = new HashMap<>();
+            exchange.getRequestHeaders().forEach((name, values) -> headers.put(name.toLowerCase(), values.get(0)));
+            InputStream rawBody = new CountingInputStream(exchange.getRequestBody(), bytesReceived);
+            InputStream body = rawBody;
+            if ("gzip".equals(headers.get("content-encoding"))) body = new GZIPInputStream(rawBody);  // The client compresses content of requests
+            Request request = new Request(exchange.getRequestMethod(), new GenericUrl(getRootUrl() + exchange.getRequestURI().toString().substring(1)), headers, body);
+
+            if (latencyMillis > 0) Thread.sleep(latencyMillis);
+            Response response;
+            if (request.url.get("upload_id") == null && rateLimitErrorRate > 0 && nextRandom() < rateLimitErrorRate) {
+                rateLimitErrors.incrementAndGet();
+                drain(request.body);
+                response = Response.error(429, "rateLimitExceeded", "Rate Limit Exceeded");
+            } else if (request.url.getRawPath().equals(BATCH_PATH)) {
+                response = handleBatch(request);
+            } else {
+                response = route(request);
+            }
+            drain(rawBody);  // Parsers may have closed the (decompressing) body stream
+
+            exchange.getResponseHeaders().clear();
+            response.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            if (response.body == null) {
+                exchange.sendResponseHeaders(response.status, -1);
+            } else {
+                exchange.sendResponseHeaders(response.status, 0);  // Chunked - content is streamed
+                try (OutputStream out = new BufferedOutputStream(new CountingOutputStream(exchange.getResponseBody(), bytesSent), 64 * 1024)) {
+                    response.body.write(out);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException exc) {
+            exc.printStackTrace();
+            throw exc;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response route(Request request) throws IOException {
+        String apiMethodName = QuotaRateLimiter.apiMethodName(request.method, request.url);
+        if (request.url.get("upload_id") != null) return handleUploadChunk(request);
+        if (apiMethodName == null) return Response.error(404, "notFound", "Not Found");
+        apiCalls.computeIfAbsent(apiMethodName, name -> new AtomicLong()).incrementAndGet();
+
+        boolean isUpload = request.url.getRawPath().startsWith(UPLOAD_PATH);
+        String[] path = request.url.getRawPath().substring((isUpload ? UPLOAD_PATH : SERVICE_PATH).length()).split("/");  // {userId}/{resource}/...
+        switch (apiMethodName) {
+            case "getProfile":
+                GenericJson profile = new GenericJson();
+                profile.put("emailAddress", "synthetic@example.com");
+                profile.put("messagesTotal", mailbox.getMessages().size());
+                profile.put("historyId", "1");
+                return Response.json(200, profile);
+            case "labels.list":
+                return Response.json(200, new ListLabelsResponse().setLabels(new ArrayList<>(labels.values())));
+            case "labels.create":
+                Label label = GmailInit.JSON_FACTORY.fromInputStream(request.body, Label.class);
+                if (labels.values().stream().anyMatch(l -> l.getName().equals(label.getName())))
+                    return Response.error(409, "duplicate", "Label name exists or conflicts");
+                label.setId("Label_" + nextLabelNum.getAndIncrement()).setType("user");
+                labels.put(label.getId(), label);
+                return Response.json(200, label);
+            case "messages.list":
+                return listMessages(request);
+            case "messages.get":
+                return getMessage(path[2], (String) request.url.getFirst("format"));
+            case "messages.attachments.get":
+                return getAttachment(path[2], path[4]);
+            case "messages.modify":
+                SyntheticMailbox.SyntheticMessage msg = mailbox.get(path[2]);
+                if (msg == null) return Response.error(404, "notFound", "Requested entity was not found.");
+                modifyLabels(msg, GmailInit.JSON_FACTORY.fromInputStream(request.body, ModifyMessageRequest.class).getAddLabelIds(), null);
+                return Response.json(200, mailbox.getMetadata(msg, "minimal"));
+            case "messages.batchModify":
+                BatchModifyMessagesRequest batchModify = GmailInit.JSON_FACTORY.fromInputStream(request.body, BatchModifyMessagesRequest.class);
+                for (String id : batchModify.getIds()) {
+                    SyntheticMailbox.SyntheticMessage modified = mailbox.get(id);
+                    if (modified != null) modifyLabels(modified, batchModify.getAddLabelIds(), null);
+                }
+                return new Response(204, null);
+            case "messages.insert":
+                if (!isUpload || !"resumable".equals(request.url.getFirst("uploadType")))
+                    return Response.error(400, "badRequest", "Fake server supports only resumable upload of inserted messages");
+                return startUpload(request);
+            default:
+                return Response.error(501, "notImplemented", "Method " + apiMethodName + " isn't implemented by the fake server");
+        }
+    }
+
+    private Response listMessages(Request request) {
+        String query = (String) request.url.getFirst("q");
+        List<String> ids = new ArrayList<>();
+        if (query != null && query.startsWith("rfc822msgid:")) {
+            Message inserted = insertedByMessageId.get(query.substring("rfc822msgid:".length()).trim());
+            if (inserted != null) ids.add(inserted.getId());
+        } else {
+            // All messages of the mailbox match every other query
+            for (SyntheticMailbox.SyntheticMessage msg : mailbox.getMessages())
+                ids.add(msg.id);
+        }
+        Object maxResultsParam = request.url.getFirst("maxResults");
+        int pageSize = maxResultsParam == null ? 100 : Math.min(MAX_PAGE_SIZE, Integer.parseInt(maxResultsParam.toString()));
+        Object pageToken = request.url.getFirst("pageToken");
+        int from = pageToken == null ? 0 : Integer.parseInt(pageToken.toString());
+        int to = Math.min(ids.size(), from + pageSize);
+
+        ListMessagesResponse page = new ListMessagesResponse().setResultSizeEstimate((long) (ids.size() - from));
+        List<Message> msgs = new ArrayList<>();
+        for (String id : ids.subList(from, to))
+            msgs.add(new Message().setId(id).setThreadId(id));
+        if (!msgs.isEmpty()) page.setMessages(msgs);
+        if (to < ids.size()) page.setNextPageToken(String.valueOf(to));
+        return Response.json(200, page);
+    }
+
+    private Response getMessage(String id, String format) {
+        SyntheticMailbox.SyntheticMessage msg = mailbox.get(id);
+        if (msg == null) return Response.error(404, "notFound", "Requested entity was not found.");
+        if (!"raw".equals(format)) return Response.json(200, mailbox.getMetadata(msg, format == null ? "full" : format));
+
+        // Stream the raw message, encoded in base64url on the fly
+        String metadataJson = new String(toJsonBytes(mailbox.getMetadata(msg, "minimal")), StandardCharsets.UTF_8);
+        Response response = new Response(200, out -> {
+            out.write((metadataJson.substring(0, metadataJson.length() - 1) + ",\"raw\":\"").getBytes(StandardCharsets.UTF_8));
+            OutputStream base64Out = Base64.getUrlEncoder().wrap(new NonClosingOutputStream(out));
+            try {
+                mailbox.writeRaw(msg, base64Out);
+            } catch (MessagingException exc) {
+                throw new IOException(exc);
+            }
+            base64Out.close();  // Writes the padding
+            out.write("\"}".getBytes(StandardCharsets.UTF_8));
+        });
+        response.headers.put("Content-Type", "application/json; charset=UTF-8");
+        return response;
+    }
+
+    private Response getAttachment(String messageId, String attachmentId) {
+        SyntheticMailbox.SyntheticMessage msg = mailbox.get(messageId);
+        SyntheticMailbox.SyntheticAttachment attachment = msg == null ? null : msg.attachments.stream().filter(a -> a.attachmentId.equals(attachmentId)).findFirst().orElse(null);
+        if (attachment == null) return Response.error(404, "notFound", "Requested entity was not found.");
+        Response response = new Response(200, out -> {
+            out.write(("{\"size\":" + attachment.size + ",\"data\":\"").getBytes(StandardCharsets.UTF_8));
+            OutputStream base64Out = Base64.getUrlEncoder().wrap(new NonClosingOutputStream(out));
+            try (InputStream in = attachment.openStream()) {
+                copy(in, base64Out);
+            }
+            base64Out.close();
+            out.write("\"}".getBytes(StandardCharsets.UTF_8));
+        });
+        response.headers.put("Content-Type", "application/json; charset=UTF-8");
+        return response;
+    }
+
+    private void modifyLabels(SyntheticMailbox.SyntheticMessage msg, List<String> addLabelIds, List<String> removeLabelIds) {
+        if (addLabelIds != null) msg.labelIds.addAll(addLabelIds);
+        if (removeLabelIds != null) msg.labelIds.removeAll(removeLabelIds);
+    }
+
+
+    ///// Resumable upload /////
+
+    private static class Upload {
+        final Message metadata;
+        long receivedBytes;
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();  // Beginning of the message, holding its headers
+
+        Upload(Message metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    private Response startUpload(Request request) throws IOException {
+        String uploadId = "upload-" + nextUploadNum.getAndIncrement();
+        byte[] metadataBytes = readAll(request.body);
+        Message metadata = metadataBytes.length == 0 ? new Message() : GmailInit.JSON_FACTORY.fromString(new String(metadataBytes, StandardCharsets.UTF_8), Message.class);
+        uploads.put(uploadId, new Upload(metadata));
+        GenericUrl location = new GenericUrl(request.url.build());
+        location.set("upload_id", uploadId);
+        Response response = new Response(200, null);
+        response.headers.put("Location", location.build());
+        return response;
+    }
+
+    private Response handleUploadChunk(Request request) throws IOException {
+        Upload upload = uploads.get((String) request.url.getFirst("upload_id"));
+        if (upload == null) return Response.error(404, "notFound", "Upload session not found");
+        Matcher range = CONTENT_RANGE_REGEX.matcher(request.headers.getOrDefault("content-range", ""));
+        if (!range.matches()) return Response.error(400, "badRequest", "Invalid Content-Range header");
+
+        synchronized (upload) {
+            if (range.group(1) != null) {
+                long from = Long.parseLong(range.group(1));
+                long to = Long.parseLong(range.group(2));
+                if (from != upload.receivedBytes) return Response.error(400, "badRequest", "Unexpected chunk offset");
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = request.body.read(buffer)) != -1) {
+                    if (upload.head.size() < buffer.length) upload.head.write(buffer, 0, Math.min(read, buffer.length - upload.head.size()));
+                    upload.receivedBytes += read;
+                }
+                if (upload.receivedBytes != to + 1) return Response.error(400, "badRequest", "Chunk length doesn't match Content-Range");
+            }
+            boolean complete = !range.group(3).equals("*") && upload.receivedBytes == Long.parseLong(range.group(3));
+            if (!complete) {
+                Response response = new Response(308, null);
+                if (upload.receivedBytes > 0) response.headers.put("Range", "bytes=0-" + (upload.receivedBytes - 1));
+                return response;
+            }
+        }
+
+        uploads.remove((String) request.url.getFirst("upload_id"));
+        Message inserted = new Message()
+                .setId(String.format("%016x", 0x2000000000L + nextInsertedNum.getAndIncrement()))
+                .setLabelIds(upload.metadata.getLabelIds());
+        inserted.setThreadId(upload.metadata.getThreadId() != null ? upload.metadata.getThreadId() : inserted.getId());
+        String messageId = findMessageIdHeader(upload.head.toByteArray());
+        if (messageId != null) insertedByMessageId.put(messageId, inserted);
+        insertedCount.incrementAndGet();
+        insertedBytes.addAndGet(upload.receivedBytes);
+        return Response.json(200, inserted);
+    }
+
+    private static String findMessageIdHeader(byte[] head) {
+        for (String line : new String(head, StandardCharsets.ISO_8859_1).split("\r\n")) {
+            if (line.isEmpty()) break;  // End of headers
+            if (line.regionMatches(true, 0, "Message-ID:", 0, "Message-ID:".length()))
+                return line.substring("Message-ID:".length()).trim();
+        }
+        return null;
+    }
+
+
+    ///// Batch /////
+
+    private Response handleBatch(Request request) throws IOException {
+        Matcher boundaryMatcher = BOUNDARY_REGEX.matcher(request.headers.getOrDefault("content-type", ""));
+        if (!boundaryMatcher.find()) return Response.error(400, "badRequest", "Batch request without multipart boundary");
+        String boundary = "--" + boundaryMatcher.group(1);
+
+        // Parse parts - each part is an HTTP request: request line, headers, empty line, and (optional) content
+        List<String> contentIds = new ArrayList<>();
+        List<Request> requests = new ArrayList<>();
+        String body = new String(readAll(request.body), StandardCharsets.UTF_8);
+        for (String part : body.split(Pattern.quote(boundary))) {
+            if (part.trim().isEmpty() || part.startsWith("--")) continue;
+            String[] partSections = part.replaceFirst("^\r\n", "").split("\r\n\r\n", 3);
+            String contentId = null;
+            for (String header : partSections[0].split("\r\n"))
+                if (header.toLowerCase().startsWith("content-id:")) contentId = header.substring("content-id:".length()).trim();
+            String[] requestLines = partSections[1].split("\r\n");
+            String[] requestLine = requestLines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < requestLines.length; i++) {
+                int colon = requestLines[i].indexOf(':');
+                if (colon > 0) headers.put(requestLines[i].substring(0, colon).trim().toLowerCase(), requestLines[i].substring(colon + 1).trim());
+            }
+            String content = partSections.length > 2 ? partSections[2].replaceFirst("\r\n$", "") : "";
+            String url = requestLine[1].startsWith("/") ? getRootUrl() + requestLine[1].substring(1) : requestLine[1];
+            contentIds.add(contentId);
+            requests.add(new Request(requestLine[0], new GenericUrl(url), headers, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        // Execute requests of the batch, and put their responses (buffered) into parts of the response
+        String responseBoundary = "batch_" + UUID.randomUUID().toString().replace("-", "");
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        for (int i = 0; i < requests.size(); i++) {
+            Response partResponse = route(requests.get(i));
+            ByteArrayOutputStream partContent = new ByteArrayOutputStream();
+            if (partResponse.body != null) partResponse.body.write(partContent);
+            StringBuilder partHead = new StringBuilder()
+                    .append("--").append(responseBoundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n");
+            if (contentIds.get(i) != null) partHead.append("Content-ID: response-").append(contentIds.get(i)).append("\r\n");
+            partHead.append("\r\n")
+                    .append("HTTP/1.1 ").append(partResponse.status).append(partResponse.status == 200 ? " OK" : " Error").append("\r\n");
+            partResponse.headers.forEach((name, value) -> partHead.append(name).append(": ").append(value).append("\r\n"));
+            partHead.append("Content-Length: ").append(partContent.size()).append("\r\n\r\n");
+            responseBody.write(partHead.toString().getBytes(StandardCharsets.UTF_8));
+            partContent.writeTo(responseBody);
+            responseBody.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        responseBody.write(("--" + responseBoundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        Response response = new Response(200, responseBody::writeTo);
+        response.headers.put("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+        return response;
+    }
+
+
+    ///// Utils /////
+
+    private synchronized double nextRandom() {
+        return random.nextDouble();
+    }
+
+    private static byte[] toJsonBytes(GenericJson content) {
+        try {
+            return GmailInit.JSON_FACTORY.toByteArray(content);
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(in, out);
+        return out.toByteArray();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        copy(in, SyntheticMessages.NULL_OUTPUT_STREAM);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) counter.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) counter.addAndGet(read);
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // The request body is closed with the exchange, after it's drained
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pl.geek.tewu.gmail_attachments_extractor.FileNameSanitizer;
+import pl.geek.tewu.gmail_attachments_extractor.Utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Sanitization of names of attachment files and directories, and escaping of strings put into descriptors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileNameBenchmark {
+    @Param({"ascii", "unicode", "invalid", "long"})
+    public String nameKind;
+
+    private Path baseDir;
+    private FileNameSanitizer sanitizer;
+    private String name;
+    private String descriptorValue;
+
+
+    @Setup
+    public void setup() throws IOException {
+        baseDir = Files.createTempDirectory("benchmark-");
+        sanitizer = FileNameSanitizer.forDirectory(baseDir);
+        switch (nameKind) {
+            case "ascii":
+                name = "Invoice 2021-03 (final).pdf";
+                break;
+            case "unicode":
+                name = "Zażółć gęślą jaźń — отчёт 報告書.pdf";
+                break;
+            case "invalid":
+                name = "re: <draft>/\\ \"what?\" | *notes*: v2...pdf";
+                break;
+            case "long":
+                name = SyntheticMessages.repeat("Very long attachment name ", 20) + ".tar.gz";
+                break;
+            default:
+                throw new IllegalArgumentException(nameKind);
+        }
+        descriptorValue = name + "\t\"quoted\"\r\n\\ " + name;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(baseDir);
+    }
+
+
+    @Benchmark
+    public String sanitizeFileName() {
+        return sanitizer.sanitizeFileName(name);
+    }
+
+    @Benchmark
+    public String sanitizeDirName() {
+        return sanitizer.sanitizeDirName(name);
+    }
+
+    @Benchmark
+    public String addJavaEscapeSequences() {
+        return Utils.addJavaEscapeSequences(descriptorValue);
+    }
+}
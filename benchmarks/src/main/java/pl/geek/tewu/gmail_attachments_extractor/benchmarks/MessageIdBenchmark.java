@@ -0,0 +1,41 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pl.geek.tewu.gmail_attachments_extractor.AccessibleMimeMessage;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Generation of Message-ID of the copy of email message, based on Message-ID of the original message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageIdBenchmark {
+    @Param({"short", "long"})
+    public String localPartKind;
+
+    private AccessibleMimeMessage message;
+
+
+    @Setup
+    public void setup() throws MessagingException {
+        message = new AccessibleMimeMessage(Session.getDefaultInstance(new Properties(), null));
+        // Local part of copies of copies keeps growing, until it gets truncated
+        String localPart = "short".equals(localPartKind) ? "CAH7xq2Q1x8kYg" : SyntheticMessages.repeat("CAH7xq2Q1x8kYg.", 8);
+        message.setHeader("Message-ID", "<" + localPart + "@mail.gmail.com>");
+    }
+
+
+    @Benchmark
+    public String generateMessageID() throws MessagingException {
+        return message.generateNextMessageID();
+    }
+}
@@ -0,0 +1,71 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pl.geek.tewu.gmail_attachments_extractor.AccessibleMimeMessage;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Processing of a whole email message, as done by the extractor for every message: parse the raw message,
+ * replace its attachment with a descriptor, and write the copy of the message out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class MimeRoundTripBenchmark {
+    // Size of the attachment of the synthetic message, in bytes
+    @Param({"10240", "1048576", "10485760", "52428800"})
+    public int attachmentSize;
+
+    private Session session;
+    private byte[] rawMessage;
+
+
+    @Setup
+    public void setup() throws IOException, MessagingException {
+        session = Session.getDefaultInstance(new Properties(), null);
+        rawMessage = SyntheticMessages.messageWithAttachment(session, attachmentSize);
+    }
+
+
+    @Benchmark
+    public AccessibleMimeMessage parse() throws IOException, MessagingException {
+        AccessibleMimeMessage message = new AccessibleMimeMessage(session, new SharedByteArrayInputStream(rawMessage));
+        ((Multipart) message.getContent()).getCount();  // Parse the MIME structure
+        return message;
+    }
+
+    @Benchmark
+    public long parseSetPartsWriteTo() throws IOException, MessagingException {
+        AccessibleMimeMessage message = new AccessibleMimeMessage(session, new SharedByteArrayInputStream(rawMessage));
+        String messageId = message.generateNextMessageID();
+
+        // The same steps, as the extractor takes for every message (see getParts, writeAttachments and setParts)
+        Multipart multipart = (Multipart) message.getContent();
+        BodyPart[] parts = new BodyPart[multipart.getCount()];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = multipart.getBodyPart(i);
+        BodyPart attachment = parts[parts.length - 1];
+        String fileName = attachment.getFileName();
+        attachment.setFileName("Deleted " + fileName + ".yml");
+        attachment.setContent("message_id: " + messageId + "\nfile_name: " + fileName + "\n", "text/plain; charset=\"US-ASCII\"");
+        message.setContent(new MimeMultipart("mixed", parts));
+        message.saveChanges();
+
+        SyntheticMessages.CountingOutputStream out = new SyntheticMessages.CountingOutputStream();
+        message.writeTo(out);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,249 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+
+/**
+ * SyntheticMailbox is a generated, reproducible set of email messages. Only sizes and names of the messages' parts
+ * are kept in memory - content of the messages is generated (from a seed) every time it's requested, and streamed,
+ * so mailboxes of any size can be served without holding their content.
+ */
+public class SyntheticMailbox {
+    public static final long FIRST_INTERNAL_DATE = 1_500_000_000_000L;
+    private static final String[][] ATTACHMENT_TYPES = {
+            {"application/pdf", "pdf"}, {"image/jpeg", "jpg"}, {"application/zip", "zip"}, {"video/mp4", "mp4"}
+    };
+    private static final String TEXT = SyntheticMessages.repeat("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n", 10);
+
+    private final List<SyntheticMessage> messages = new ArrayList<>();
+    private final Map<String, SyntheticMessage> messagesById = new HashMap<>();
+    private final Session session = Session.getDefaultInstance(new Properties(), null);
+
+
+    /**
+     * Distribution of sizes of generated messages - the number of attachments of a message is uniformly distributed,
+     * and their sizes are log-normally distributed.
+     */
+    public static class Distribution {
+        public double attachmentProbability = 0.8;  // Probability that a message has any attachments
+        public int maxAttachments = 3;
+        public long medianAttachmentSize = 1_000_000;
+        public double attachmentSizeSigma = 1.0;
+        public long maxAttachmentSize = 25_000_000;
+    }
+
+    public static class SyntheticMessage {
+        public final String id;
+        public final int index;
+        public final long internalDate;
+        public final List<SyntheticAttachment> attachments = new ArrayList<>();
+        public final Set<String> labelIds = Collections.synchronizedSet(new LinkedHashSet<>());
+
+        SyntheticMessage(int index) {
+            this.index = index;
+            this.id = String.format("%016x", 0x1000000000L + index);
+            this.internalDate = FIRST_INTERNAL_DATE + index * 60_000L;
+        }
+
+        public String getMessageId() {
+            return "<synthetic-" + index + "@example.com>";
+        }
+
+        public int getSizeEstimate() {
+            long size = TEXT.length() + 2048;
+            for (SyntheticAttachment attachment : attachments)
+                size += attachment.size / 3 * 4 + 512;  // Base64 encoded
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+
+    public static class SyntheticAttachment {
+        public final String attachmentId;
+        public final String fileName;
+        public final String mimeType;
+        public final long size;
+        public final long seed;
+
+        SyntheticAttachment(String attachmentId, String fileName, String mimeType, long size, long seed) {
+            this.attachmentId = attachmentId;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.seed = seed;
+        }
+
+        public InputStream openStream() {
+            return new RandomInputStream(seed, size);
+        }
+    }
+
+
+    public SyntheticMailbox(int messageCount, Distribution distribution, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < messageCount; i++) {
+            SyntheticMessage msg = new SyntheticMessage(i);
+            msg.labelIds.add("INBOX");
+            if (random.nextDouble() < distribution.attachmentProbability) {
+                int attachmentCount = 1 + random.nextInt(distribution.maxAttachments);
+                for (int a = 0; a < attachmentCount; a++) {
+                    String[] type = ATTACHMENT_TYPES[random.nextInt(ATTACHMENT_TYPES.length)];
+                    long size = (long) (distribution.medianAttachmentSize * Math.exp(distribution.attachmentSizeSigma * random.nextGaussian()));
+                    size = Math.max(1, Math.min(size, distribution.maxAttachmentSize));
+                    msg.attachments.add(new SyntheticAttachment("att-" + msg.id + "-" + a, "file-" + i + "-" + a + "." + type[1], type[0], size, random.nextLong()));
+                }
+            }
+            messages.add(msg);
+            messagesById.put(msg.id, msg);
+        }
+    }
+
+
+    public List<SyntheticMessage> getMessages() {
+        return messages;
+    }
+
+    public SyntheticMessage get(String id) {
+        return messagesById.get(id);
+    }
+
+    /**
+     * Get metadata of the message, as returned by messages.get - in the given format ("full", "metadata" or "minimal").
+     */
+    public Message getMetadata(SyntheticMessage msg, String format) {
+        Message result = new Message()
+                .setId(msg.id)
+                .setThreadId(msg.id)
+                .setLabelIds(new ArrayList<>(msg.labelIds))
+                .setSizeEstimate(msg.getSizeEstimate())
+                .setInternalDate(msg.internalDate);
+        if ("minimal".equals(format)) return result;
+
+        List<MessagePartHeader> headers = Arrays.asList(
+                header("From", "Sender <sender@example.com>"),
+                header("To", "Recipient <recipient@example.com>"),
+                header("Subject", "Synthetic message " + msg.index),
+                header("Date", new MailDateFormat().format(new Date(msg.internalDate))),
+                header("Message-ID", msg.getMessageId()));
+        MessagePart payload = new MessagePart().setMimeType("multipart/mixed").setFilename("").setHeaders(headers);
+        if (!"metadata".equals(format)) {
+            List<MessagePart> parts = new ArrayList<>();
+            parts.add(new MessagePart().setPartId("0").setMimeType("text/plain").setFilename("")
+                    .setBody(new MessagePartBody().setSize(TEXT.length())));
+            for (int a = 0; a < msg.attachments.size(); a++) {
+                SyntheticAttachment attachment = msg.attachments.get(a);
+                parts.add(new MessagePart().setPartId(String.valueOf(a + 1)).setMimeType(attachment.mimeType).setFilename(attachment.fileName)
+                        .setBody(new MessagePartBody().setSize((int) attachment.size).setAttachmentId(attachment.attachmentId)));
+            }
+            payload.setParts(parts);
+        }
+        return result.setPayload(payload);
+    }
+
+    /**
+     * Write the message in RFC 822 format. Content of attachments is generated while it's written.
+     */
+    public void writeRaw(SyntheticMessage msg, OutputStream out) throws IOException, MessagingException {
+        MimeMessage mimeMessage = new MimeMessage(session);
+        mimeMessage.setFrom(new InternetAddress("sender@example.com", "Sender"));
+        mimeMessage.setRecipient(javax.mail.Message.RecipientType.TO, new InternetAddress("recipient@example.com", "Recipient"));
+        mimeMessage.setSubject("Synthetic message " + msg.index);
+        mimeMessage.setSentDate(new Date(msg.internalDate));
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(TEXT, "US-ASCII");
+        multipart.addBodyPart(text);
+        for (SyntheticAttachment attachment : msg.attachments) {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new AttachmentDataSource(attachment)));
+            part.setFileName(attachment.fileName);
+            part.setHeader("Content-Transfer-Encoding", "base64");
+            multipart.addBodyPart(part);
+        }
+        mimeMessage.setContent(multipart);
+        mimeMessage.saveChanges();
+        mimeMessage.setHeader("Message-ID", msg.getMessageId());  // saveChanges generates a new one
+        mimeMessage.writeTo(out);
+    }
+
+
+    private static MessagePartHeader header(String name, String value) {
+        return new MessagePartHeader().setName(name).setValue(value);
+    }
+
+    private static class AttachmentDataSource implements DataSource {
+        private final SyntheticAttachment attachment;
+
+        AttachmentDataSource(SyntheticAttachment attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return attachment.openStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return attachment.mimeType;
+        }
+
+        @Override
+        public String getName() {
+            return attachment.fileName;
+        }
+    }
+
+    /**
+     * Stream of the given number of pseudo-random bytes, generated from the seed.
+     */
+    static class RandomInputStream extends InputStream {
+        private final Random random;
+        private final byte[] block = new byte[64 * 1024];
+        private long remaining;
+        private int blockPos = block.length;
+
+        RandomInputStream(long seed, long size) {
+            this.random = new Random(seed);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) return -1;
+            if (blockPos == block.length) {
+                random.nextBytes(block);
+                blockPos = 0;
+            }
+            int n = (int) Math.min(Math.min(len, block.length - blockPos), remaining);
+            System.arraycopy(block, blockPos, b, off, n);
+            blockPos += n;
+            remaining -= n;
+            return n;
+        }
+    }
+}
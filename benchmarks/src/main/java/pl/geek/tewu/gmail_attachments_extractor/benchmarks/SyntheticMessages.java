@@ -0,0 +1,89 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
+import javax.activation.DataHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Random;
+
+
+/**
+ * Reproducible data for benchmarks.
+ */
+public class SyntheticMessages {
+    public static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    private static final long SEED = 42;
+
+
+    public static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    public static String repeat(String str, int times) {
+        StringBuilder sb = new StringBuilder(str.length() * times);
+        for (int i = 0; i < times; i++)
+            sb.append(str);
+        return sb.toString();
+    }
+
+    /**
+     * Build raw email message, with a text part and a (base64 encoded) binary attachment of the given size.
+     */
+    public static byte[] messageWithAttachment(Session session, int attachmentSize) throws IOException, MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient@example.com"));
+        message.setSubject("Synthetic message with " + attachmentSize + " bytes attachment", "UTF-8");
+        message.setSentDate(new Date(1_600_000_000_000L));
+
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(repeat("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n", 20), "UTF-8");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(randomBytes(attachmentSize), "application/octet-stream")));
+        attachment.setFileName("attachment.bin");
+        message.setContent(new MimeMultipart("mixed", text, attachment));
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(attachmentSize / 3 * 4 + 64 * 1024);
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     * OutputStream that discards written data, and only counts it.
+     */
+    public static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package pl.geek.tewu.gmail_attachments_extractor.benchmarks;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.gmail.Gmail;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import pl.geek.tewu.gmail_attachments_extractor.*;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+
+/**
+ * ThroughputHarness runs the whole extraction flow against FakeGmailServer, serving a synthetic mailbox,
+ * and reports throughput (messages/s, bytes/s), peak heap usage, and Gmail API calls per message.
+ * Extractor options (e.g. --parallelism 4) can be passed after "--".
+ */
+@Command(
+        name = "ThroughputHarness",
+        mixinStandardHelpOptions = true,
+        sortOptions = false,
+        showDefaultValues = true,
+        separator = " ",
+        description = "Run the extractor against a local fake Gmail API server, and report its throughput."
+)
+public class ThroughputHarness implements Callable<Integer> {
+    public static final long HEAP_SAMPLING_INTERVAL_MILLIS = 10;
+
+    @Option(names = {"--messages"}, defaultValue = "200", paramLabel = "N", description = "Number of email messages in the synthetic mailbox.")
+    int messageCount;
+
+    @Option(names = {"--attachment-probability"}, defaultValue = "0.8", paramLabel = "P", description = "Probability that a message has attachments.")
+    double attachmentProbability;
+
+    @Option(names = {"--max-attachments"}, defaultValue = "3", paramLabel = "N", description = "Max number of attachments of a message (the number is uniformly distributed).")
+    int maxAttachments;
+
+    @Option(names = {"--median-attachment-size"}, defaultValue = "500000", paramLabel = "BYTES", description = "Median size of attachments (sizes are log-normally distributed).")
+    long medianAttachmentSize;
+
+    @Option(names = {"--attachment-size-sigma"}, defaultValue = "1.0", paramLabel = "SIGMA", description = "Sigma of the log-normal distribution of attachment sizes.")
+    double attachmentSizeSigma;
+
+    @Option(names = {"--max-attachment-size"}, defaultValue = "25000000", paramLabel = "BYTES", description = "Max size of attachments.")
+    long maxAttachmentSize;
+
+    @Option(names = {"--seed"}, defaultValue = "1", description = "Seed of the synthetic mailbox.")
+    long seed;
+
+    @Option(names = {"--latency"}, defaultValue = "0", paramLabel = "MILLIS", description = "Latency added to every HTTP request.")
+    long latencyMillis;
+
+    @Option(names = {"--rate-limit-errors"}, defaultValue = "0", paramLabel = "P", description = "Fraction of HTTP requests rejected with 429 (rate limit exceeded).")
+    double rateLimitErrorRate;
+
+    @Option(names = {"--query"}, defaultValue = "has:attachment", description = "Query string passed to the extractor (the fake server matches all messages with every query).")
+    String query;
+
+    @Option(names = {"--json"}, paramLabel = "FILE", description = "Also save results as JSON to FILE.")
+    Path jsonFile;
+
+    @Option(names = {"--quiet"}, description = "Don't print the output of the extractor.")
+    boolean quiet;
+
+    @Parameters(paramLabel = "EXTRACTOR_OPTIONS", description = "Options passed to the extractor.")
+    List<String> extractorArgs = new ArrayList<>();
+
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new ThroughputHarness()).execute(args));
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        SyntheticMailbox.Distribution distribution = new SyntheticMailbox.Distribution();
+        distribution.attachmentProbability = attachmentProbability;
+        distribution.maxAttachments = maxAttachments;
+        distribution.medianAttachmentSize = medianAttachmentSize;
+        distribution.attachmentSizeSigma = attachmentSizeSigma;
+        distribution.maxAttachmentSize = maxAttachmentSize;
+        SyntheticMailbox mailbox = new SyntheticMailbox(messageCount, distribution, seed);
+
+        // The extractor checks that the credentials file exists, but it's not used with the fake server
+        Path workDir = Files.createTempDirectory("throughput-harness-");
+        Path credentialsFile = Files.createFile(workDir.resolve("credentials.json"));
+        List<String> args = new ArrayList<>(Arrays.asList("-C", credentialsFile.toString(), query, workDir.resolve("output").toString()));
+        args.addAll(extractorArgs);
+        Options options = CommandLine.populateCommand(new Options(), args.toArray(new String[0]));
+        options.process();
+
+        boolean success;
+        long elapsedNanos;
+        long peakHeap;
+        PrintStream origOut = System.out;
+        try (FakeGmailServer server = new FakeGmailServer(mailbox, latencyMillis, rateLimitErrorRate)) {
+            Gmail gmail = new Gmail.Builder(new NetHttpTransport(), GmailInit.JSON_FACTORY, new QuotaRateLimiter(new UploadRetryInitializer(null), options.quotaUnitsPerSecond))
+                    .setRootUrl(server.getRootUrl())
+                    .setApplicationName(AppInfo.NAME)
+                    .build();
+
+            HeapSampler heapSampler = new HeapSampler();
+            if (quiet) System.setOut(new PrintStream(SyntheticMessages.NULL_OUTPUT_STREAM));
+            long start = System.nanoTime();
+            try {
+                heapSampler.start();
+                success = new GmailAttachmentsExtractor(gmail, "me", options).extractAttachments();
+            } finally {
+                elapsedNanos = System.nanoTime() - start;
+                peakHeap = heapSampler.stop();
+                System.setOut(origOut);
+            }
+            printResults(mailbox, server, elapsedNanos, peakHeap, success);
+        } finally {
+            Utils.deleteRecursively(workDir);
+        }
+        return success ? 0 : 1;
+    }
+
+
+    private void printResults(SyntheticMailbox mailbox, FakeGmailServer server, long elapsedNanos, long peakHeap, boolean success) throws Exception {
+        double seconds = elapsedNanos / 1e9;
+        int messages = mailbox.getMessages().size();
+        long bytes = server.getBytesSent() + server.getBytesReceived();
+
+        GenericJson results = new GenericJson();
+        results.put("success", success);
+        results.put("messages", messages);
+        results.put("elapsedSeconds", seconds);
+        results.put("messagesPerSecond", messages / seconds);
+        results.put("bytesSent", server.getBytesSent());
+        results.put("bytesReceived", server.getBytesReceived());
+        results.put("bytesPerSecond", bytes / seconds);
+        results.put("insertedMessages", server.getInsertedCount());
+        results.put("peakHeapBytes", peakHeap);
+        results.put("httpRequests", server.getHttpRequests());
+        results.put("rateLimitErrors", server.getRateLimitErrors());
+        GenericJson callsPerMessage = new GenericJson();
+        for (Map.Entry<String, Long> calls : server.getApiCalls().entrySet())
+            callsPerMessage.put(calls.getKey(), (double) calls.getValue() / messages);
+        results.put("apiCallsPerMessage", callsPerMessage);
+        results.put("httpRequestsPerMessage", (double) server.getHttpRequests() / messages);
+
+        System.out.println(
+                "\n=== THROUGHPUT ===\n" +
+                        "Processed " + messages + " email(s) in " + String.format("%.2f", seconds) + " s" + (success ? "" : " (UNSUCCESSFULLY)") + "\n" +
+                        "Messages/s: " + String.format("%.2f", messages / seconds) + "\n" +
+                        "Downloaded: " + Utils.humanReadableByteCount(server.getBytesSent()) + ", uploaded: " + Utils.humanReadableByteCount(server.getBytesReceived()) + "\n" +
+                        "Bytes/s: " + Utils.humanReadableByteCount((long) (bytes / seconds)) + "\n" +
+                        "Peak heap: " + Utils.humanReadableByteCount(peakHeap) + "\n" +
+                        "HTTP requests: " + server.getHttpRequests() + " (" + String.format("%.2f", (double) server.getHttpRequests() / messages) + " per message), rejected with 429: " + server.getRateLimitErrors() + "\n" +
+                        "API calls per message: " + callsPerMessage
+        );
+        if (jsonFile != null) Files.write(jsonFile, GmailInit.JSON_FACTORY.toPrettyString(results).getBytes("UTF-8"));
+    }
+
+
+    /**
+     * Samples used heap in the background, to find its peak.
+     */
+    private static class HeapSampler {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile boolean running;
+        private volatile long peak;
+        private Thread thread;
+
+        void start() {
+            System.gc();  // Start from the live set
+            running = true;
+            thread = new Thread(() -> {
+                while (running) {
+                    peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                    try {
+                        Thread.sleep(HEAP_SAMPLING_INTERVAL_MILLIS);
+                    } catch (InterruptedException exc) {
+                        return;
+                    }
+                }
+            }, "heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            return Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.ByteArrayOutputStream;
+
+
+/**
+ * AccessibleByteArrayOutputStream is ByteArrayOutputStream that gives access to its buffer, to avoid copying it.
+ */
+public class AccessibleByteArrayOutputStream extends ByteArrayOutputStream {
+    public AccessibleByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+
+    /**
+     * Get the internal buffer. Only the first size() bytes of it are valid.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+}
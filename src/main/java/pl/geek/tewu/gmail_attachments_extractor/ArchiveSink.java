@@ -0,0 +1,413 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+
+/**
+ * ArchiveSink saves attachments as entries of archives in the output directory, written one after another as a single
+ * sequential stream - instead of creating a file (and a directory per email message) on the file system. Paths of
+ * entries are paths of attachment files relative to the output directory (e.g. "2021.01.25 13_45_00 Subject/file.pdf").
+ * <p>
+ * Attachments expected to be larger than spillThreshold are streamed right into the current archive - the archive is
+ * kept for such attachment until it's committed or deleted (a deleted attachment is cut off the end of the archive),
+ * and other attachments wait for it. Content of smaller attachments (and of attachments of unknown size) is first kept
+ * in memory (or in a spill file in spillDir, if it turns out to be larger than spillThreshold), and added to the archive
+ * on commit - so that threads saving them don't wait for each other, and attachments that get dropped never reach
+ * the archive.
+ * <p>
+ * Archives (volumes) are named PREFIX-00001.EXT, PREFIX-00002.EXT, ..., and the next volume is started when adding
+ * an entry would make the current one larger than maxVolumeSize (for streamed entries, judging by their expected size).
+ * Volumes are synced to disk when they are finished. Volumes left unfinished by an earlier run (e.g. an interrupted
+ * one) are repaired when they are found - the incomplete entry at the end is cut off, and the volume is finished.
+ */
+public abstract class ArchiveSink implements OutputSink {
+    public static final String VOLUME_NAME_PREFIX = "attachments-";
+    public static final int VOLUME_BUFFER_SIZE = 1024 * 1024;
+
+    private final Path outputDir;
+    private final String volumeExtension;
+    private final long maxVolumeSize;
+    private final long spillThreshold;
+    private final Path spillDir;
+    private final NameRegistry nameRegistry = new NameRegistry();
+    private final Map<Path, Entry> openEntries = new ConcurrentHashMap<>();  // Entries that haven't been committed or deleted yet
+    private final AtomicLong spillFileCount = new AtomicLong();
+    // Current volume - guarded by this
+    private int volumeNum = 0;
+    private Path volume;
+    private RandomAccessFile volumeFile;
+    private OutputStream volumeOut;
+    private long volumeSize;
+    private StreamedEntry streamingEntry;  // Entry the current volume is kept for - no other entry can be added until it's committed or deleted
+
+
+    protected ArchiveSink(Path outputDir, String volumeExtension, long maxVolumeSize, long spillThreshold, Path spillDir) {
+        this.outputDir = outputDir;
+        this.volumeExtension = volumeExtension;
+        this.maxVolumeSize = maxVolumeSize;
+        this.spillThreshold = spillThreshold > 0 ? spillThreshold : Long.MAX_VALUE;
+        this.spillDir = spillDir;
+    }
+
+
+    /**
+     * Write header of the entry to the current volume, before its content. crc is the CRC-32 of the content.
+     * If size is -1, size and crc aren't known yet - then they are given to finishEntry, which has to fix the header.
+     * Until then, the header must not look like a complete entry to readers of the volume (and to recoverVolume).
+     */
+    protected abstract void startEntry(String path, long size, long crc) throws IOException;
+
+    /**
+     * Write the end of the entry (e.g. padding), after its content.
+     */
+    protected abstract void finishEntry(String path, long size, long crc) throws IOException;
+
+    /**
+     * Write the end of the current volume (e.g. its index).
+     */
+    protected abstract void finishVolume() throws IOException;
+
+    /**
+     * Get the number of bytes added to the volume by an entry, besides its content (i.e. entry's headers).
+     */
+    protected abstract long getEntryOverhead(String path);
+
+    /**
+     * Read the volume left by an earlier run, and get the position where its complete entries end - or -1 if the
+     * volume has been finished. The entries must be recorded as if they were written by this sink, as the rest of
+     * the volume is then cut off, and the volume is finished with finishVolume.
+     */
+    protected abstract long recoverVolume(RandomAccessFile file) throws IOException;
+
+    /**
+     * Called when the current volume has been cut to the given size - entries written from that position on are gone.
+     */
+    protected void volumeTruncated(long size) {
+    }
+
+
+    protected final void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    protected final void write(byte[] b, int off, int len) throws IOException {
+        volumeOut.write(b, off, len);
+        volumeSize += len;
+    }
+
+    /**
+     * Get the size of the current volume - i.e. position of the next written byte.
+     */
+    protected final long getVolumeSize() {
+        return volumeSize;
+    }
+
+    /**
+     * Overwrite bytes written to the current volume before (e.g. fix a header).
+     */
+    protected final void overwrite(long position, byte[] b) throws IOException {
+        volumeOut.flush();
+        volumeFile.seek(position);
+        volumeFile.write(b);
+        volumeFile.seek(volumeSize);
+    }
+
+
+    private abstract static class Entry extends OutputStream {
+        final Path file;
+        final String path;
+        final CRC32 crc = new CRC32();
+        long size = 0;
+
+        Entry(Path file, String path) {
+            this.file = file;
+            this.path = path;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+    }
+
+    // Content of the attachment, waiting to be committed
+    private class BufferedEntry extends Entry {
+        final SpillingOutputStream content;
+        final Path spillFile;
+
+        BufferedEntry(Path file, String path) {
+            super(file, path);
+            spillFile = spillDir.resolve("entry-" + spillFileCount.incrementAndGet() + ".tmp");
+            content = new SpillingOutputStream(spillThreshold, spillFile);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            content.write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            content.close();
+        }
+
+        InputStream openContent() throws IOException {
+            if (content.memory != null) return new ByteArrayInputStream(content.memory.getBuffer(), 0, content.memory.size());
+            return new BufferedInputStream(Files.newInputStream(spillFile), Utils.COPY_BUFFER_SIZE);
+        }
+
+        void discard() throws IOException {
+            content.close();
+            Files.deleteIfExists(spillFile);
+        }
+    }
+
+    // Attachment written right into the current volume
+    private class StreamedEntry extends Entry {
+        final Path volume;
+        final long start;  // Position of the entry in the volume
+        boolean finished = false;
+
+        StreamedEntry(Path file, String path, Path volume, long start) {
+            super(file, path);
+            this.volume = volume;
+            this.start = start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) throw new IOException("Stream closed");
+            ArchiveSink.this.write(b, off, len);  // The volume is kept for this entry - no need to lock it
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            synchronized (ArchiveSink.this) {
+                finishEntry(path, size, crc.getValue());
+                finished = true;
+            }
+        }
+    }
+
+
+    @Override
+    public void createDirectories(Path dir) {
+        // Directories exist only as prefixes of entry paths
+    }
+
+    @Override
+    public Path createDirectory(Path parent, String name, int maxNum) throws IOException {
+        return nameRegistry.reserveDirectory(parent, name, maxNum);
+    }
+
+    @Override
+    public Path createFile(Path dir, String name, int maxNum) throws IOException {
+        return nameRegistry.reserveFile(dir, name, maxNum);
+    }
+
+    @Override
+    public void releaseDirectory(Path dir) {
+        nameRegistry.release(dir);
+    }
+
+    @Override
+    public OutputStream openFile(Path file, long expectedSize, FileSyncGroup syncGroup) throws IOException {
+        String path = outputDir.relativize(file).toString().replace(File.separatorChar, '/');
+        Entry entry;
+        if (expectedSize > spillThreshold) {
+            synchronized (this) {
+                waitForVolume();
+                prepareVolume(path, expectedSize);
+                streamingEntry = new StreamedEntry(file, path, volume, volumeSize);
+                entry = streamingEntry;
+                startEntry(path, -1, 0);
+            }
+        } else {
+            entry = new BufferedEntry(file, path);
+        }
+        openEntries.put(file, entry);
+        return entry;
+    }
+
+    @Override
+    public long size(Path file) {
+        return getOpenEntry(file).size;
+    }
+
+    @Override
+    public Path commit(Path file) throws IOException {
+        Entry entry = getOpenEntry(file);
+        openEntries.remove(file);
+        if (entry instanceof StreamedEntry) {
+            synchronized (this) {
+                if (!((StreamedEntry) entry).finished) throw new IllegalStateException("File '" + file + "' hasn't been closed");
+                releaseVolume();
+                return ((StreamedEntry) entry).volume;
+            }
+        }
+        BufferedEntry bufferedEntry = (BufferedEntry) entry;
+        try (InputStream content = bufferedEntry.openContent()) {
+            synchronized (this) {
+                waitForVolume();
+                prepareVolume(entry.path, entry.size);
+                startEntry(entry.path, entry.size, entry.crc.getValue());
+                long copied = Utils.copy(content, new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        ArchiveSink.this.write(b, off, len);
+                    }
+                });
+                if (copied != entry.size) throw new IOException("Size of entry '" + entry.path + "' changed while it was being written");
+                finishEntry(entry.path, entry.size, entry.crc.getValue());
+                return volume;
+            }
+        } finally {
+            bufferedEntry.discard();
+        }
+    }
+
+    @Override
+    public void delete(Path file) throws IOException {
+        Entry entry = openEntries.remove(file);
+        if (entry instanceof StreamedEntry) {
+            synchronized (this) {
+                truncateVolume(((StreamedEntry) entry).start);
+                releaseVolume();
+            }
+        } else if (entry != null) {
+            ((BufferedEntry) entry).discard();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (streamingEntry != null) {  // Not committed - e.g. the run has been interrupted
+                truncateVolume(streamingEntry.start);
+                releaseVolume();
+            }
+            if (volumeOut != null) closeVolume();
+        } finally {
+            for (Entry entry : openEntries.values())
+                if (entry instanceof BufferedEntry) ((BufferedEntry) entry).discard();
+            openEntries.clear();
+        }
+    }
+
+    private Entry getOpenEntry(Path file) {
+        Entry entry = openEntries.get(file);
+        if (entry == null) throw new IllegalStateException("File '" + file + "' hasn't been opened");
+        return entry;
+    }
+
+    // Wait until the volume isn't kept for a streamed entry - must be called with the lock held
+    private void waitForVolume() throws IOException {
+        try {
+            while (streamingEntry != null)
+                wait();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the archive");
+        }
+    }
+
+    private void releaseVolume() {
+        streamingEntry = null;
+        notifyAll();
+    }
+
+    // Make sure there's a volume to add the entry to - start the next volume, if the entry doesn't fit in the current one
+    private void prepareVolume(String path, long contentSize) throws IOException {
+        long entrySize = getEntryOverhead(path) + contentSize;
+        if (volumeOut != null && volumeSize > 0 && volumeSize + entrySize > maxVolumeSize) closeVolume();
+        if (volumeOut == null) openVolume();
+    }
+
+    private void openVolume() throws IOException {
+        while (true) {
+            volume = outputDir.resolve(String.format("%s%05d.%s", VOLUME_NAME_PREFIX, ++volumeNum, volumeExtension));
+            try {
+                Files.createFile(volume);
+            } catch (FileAlreadyExistsException exc) {
+                repairVolume();  // Volume written by an earlier run
+                continue;
+            }
+            Log.detail("Writing attachments to archive '" + volume.getFileName() + "'");
+            break;
+        }
+        // RandomAccessFile, unlike FileChannel, doesn't get closed when a thread writing to it is interrupted (e.g. when a download is cancelled)
+        useVolumeFile(new RandomAccessFile(volume.toFile(), "rw"), 0);
+    }
+
+    // Finish the existing volume, if it hasn't been finished - cutting off the incomplete entry at its end
+    private void repairVolume() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(volume.toFile(), "rw");
+        try {
+            long end = recoverVolume(file);
+            if (end == -1) return;
+            Log.warn("Archive '" + volume.getFileName() + "' hasn't been finished by an earlier run - cutting off its incomplete entry (" + (file.length() - end) + " bytes), and finishing it");
+            useVolumeFile(file, end);
+            file = null;  // Closed with the volume
+            truncateVolume(end);
+            closeVolume();
+        } finally {
+            if (file != null) file.close();
+        }
+    }
+
+    private void useVolumeFile(RandomAccessFile file, long size) throws IOException {
+        volumeFile = file;
+        volumeFile.seek(size);
+        volumeSize = size;
+        volumeOut = new BufferedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                volumeFile.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                volumeFile.write(b, off, len);
+            }
+        }, VOLUME_BUFFER_SIZE);
+    }
+
+    // Cut off the end of the current volume, from the given position
+    private void truncateVolume(long position) throws IOException {
+        volumeOut.flush();
+        volumeFile.setLength(position);
+        volumeFile.seek(position);
+        volumeSize = position;
+        volumeTruncated(position);
+    }
+
+    private void closeVolume() throws IOException {
+        try {
+            finishVolume();
+            volumeOut.flush();
+            volumeFile.getFD().sync();
+        } finally {
+            volumeFile.close();
+            volumeFile = null;
+            volumeOut = null;
+            volume = null;
+        }
+    }
+}
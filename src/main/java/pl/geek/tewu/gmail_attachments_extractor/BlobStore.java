@@ -0,0 +1,89 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * BlobStore is a content-addressed store of attachment files - every unique content is stored only once, in a file
+ * named after the SHA-256 hash of the content. Files added to the store are replaced with hard links to the stored
+ * content (or with copies of it, if the file system doesn't support hard links).
+ * Hashes of all stored contents are kept in an append-only index file, so the store (and the detection of duplicates)
+ * can be reused across runs.
+ */
+public class BlobStore implements Closeable {
+    public static final String HASH_ALGORITHM = DigestUtils.Algorithms.SHA_256;
+    public static final String INDEX_FILE_NAME = "index.txt";
+
+    private final Path dir;
+    private final Map<String, Long> sizesByHash = new HashMap<>();
+    private final Writer indexWriter;
+    private boolean hardLinksSupported = true;
+
+
+    public BlobStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        Path indexFile = dir.resolve(INDEX_FILE_NAME);
+        if (Files.exists(indexFile)) {
+            // Each line of the index is: <content hash> <content size in bytes>
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.US_ASCII)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length == 2) sizesByHash.put(fields[0], Long.parseLong(fields[1]));
+                }
+            }
+        }
+        this.indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Move content of the file into the store (unless the same content is already stored), and replace the file with
+     * a link to the stored content. hash is the HASH_ALGORITHM hash of the file's content, as hex string.
+     * Returns true if the same content has already been stored (i.e. the file is a duplicate).
+     */
+    public synchronized boolean add(Path file, String hash) throws IOException {
+        Path blob = getBlobPath(hash);
+        long size = Files.size(file);
+        Long storedSize = sizesByHash.get(hash);
+        boolean duplicate = storedSize != null && storedSize == size && Files.exists(blob);
+        if (duplicate) {
+            Files.delete(file);
+        } else {
+            Files.createDirectories(blob.getParent());
+            Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING);
+            indexWriter.write(hash + " " + size + "\n");
+            indexWriter.flush();
+            sizesByHash.put(hash, size);
+        }
+        link(file, blob);
+        return duplicate;
+    }
+
+    public Path getBlobPath(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);  // Spread blobs over subdirectories, to keep directories small
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        indexWriter.close();
+    }
+
+
+    private void link(Path file, Path blob) throws IOException {
+        if (hardLinksSupported) {
+            try {
+                Files.createLink(file, blob);
+                return;
+            } catch (UnsupportedOperationException | FileSystemException exc) {
+                if (exc instanceof FileAlreadyExistsException) throw exc;
+                hardLinksSupported = false;
+                Log.warn("WARNING: Can't create hard links in '" + file.getParent() + "' (" + exc + ") - attachments will be copied from the deduplicating store instead.");
+            }
+        }
+        Files.copy(blob, file);
+    }
+}
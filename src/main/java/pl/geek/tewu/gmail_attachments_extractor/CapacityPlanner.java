@@ -0,0 +1,209 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+
+/**
+ * CapacityPlanner estimates what extracting attachments would do, without extracting them: how many attachments
+ * (and bytes) would be extracted, and how much Gmail API quota (and time) the run would use.
+ * The estimate is computed from a MetadataIndex of email messages matching the query. The index is built once
+ * (using metadata-only requests), and reused by later plans with the same query, which evaluate the attachment
+ * filter against it locally.
+ */
+public class CapacityPlanner {
+    private final Gmail gmail;
+    private final Gmail.Users.Messages gmailMessages;
+    private final String userId;
+    private final Options options;
+
+
+    public CapacityPlanner(Gmail gmail, String userId, Options options) {
+        this.gmail = gmail;
+        this.gmailMessages = gmail.users().messages();
+        this.userId = userId;
+        this.options = options;
+    }
+
+    public boolean plan() throws IOException, InterruptedException {
+        Log.start(options.logLevel, options.logFormat);
+        try {
+            return doPlan();
+        } finally {
+            Log.stop();
+        }
+    }
+
+
+    private boolean doPlan() throws IOException {
+        MetadataIndex index = null;
+        if (options.planIndexFile.toFile().exists()) {
+            index = MetadataIndex.read(options.planIndexFile);
+            if (Objects.equals(index.getQuery(), options.queryString)) {
+                Log.info("Using metadata index '" + options.planIndexFile + "', created " + Instant.ofEpochMilli(index.getCreatedMillis()) + " - delete it to plan against the current state of the mailbox");
+            } else {
+                Log.info("Metadata index '" + options.planIndexFile + "' has been created for a different query ('" + index.getQuery() + "') - rebuilding it");
+                index = null;
+            }
+        }
+        if (index == null) index = buildIndex(options.planIndexFile);
+        if (index.size() == 0) {
+            Log.info("No messages matched query '" + options.queryString + "' - Terminating.");
+            return false;
+        }
+        printPlan(index);
+        return true;
+    }
+
+    private MetadataIndex buildIndex(Path file) throws IOException {
+        Log.info("Building metadata index of email messages matching query '" + options.queryString + "'");
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (MetadataIndex.Writer writer = MetadataIndex.create(tmpFile, options.queryString)) {
+            String pageToken = null;
+            do {
+                ListMessagesResponse page = gmailMessages.list(userId)
+                        .setQ(options.queryString)
+                        .setPageToken(pageToken)
+                        .setMaxResults(GmailAttachmentsExtractor.MESSAGES_PAGE_SIZE)
+                        .execute();
+                if (page.getMessages() != null) {
+                    for (Message msg : getMessagesMetadata(page.getMessages()))
+                        writer.add(msg);
+                    count += page.getMessages().size();
+                    Log.info("    Indexed " + count + " email messages");
+                }
+                pageToken = page.getNextPageToken();
+            } while (pageToken != null);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return MetadataIndex.read(file);
+    }
+
+    // Get only the indexed fields of the messages, using batch requests - messages which part of the batch request failed are got separately
+    private List<Message> getMessagesMetadata(List<Message> ids) throws IOException {
+        Message[] msgs = new Message[ids.size()];
+        for (int from = 0; from < ids.size(); from += options.metadataBatchSize) {
+            BatchRequest batch = GmailInit.newBatchRequest(gmail);
+            for (int i = from; i < Math.min(from + options.metadataBatchSize, ids.size()); i++) {
+                final int msgIndex = i;
+                getMetadataRequest(ids.get(i).getId()).queue(batch, new JsonBatchCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message msg, HttpHeaders responseHeaders) {
+                        msgs[msgIndex] = msg;
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                    }
+                });
+            }
+            try {
+                batch.execute();
+            } catch (IOException exc) {
+                // Metadata of messages that hasn't been fetched in the batch, will be fetched separately
+            }
+        }
+        List<Message> result = new ArrayList<>(msgs.length);
+        for (int i = 0; i < msgs.length; i++)
+            result.add(msgs[i] != null ? msgs[i] : getMetadataRequest(ids.get(i).getId()).execute());
+        return result;
+    }
+
+    private Gmail.Users.Messages.Get getMetadataRequest(String messageId) throws IOException {
+        return gmailMessages.get(userId, messageId).setFields(MetadataIndex.MESSAGE_FIELDS);
+    }
+
+
+    private void printPlan(MetadataIndex index) {
+        int msgCount = index.size();
+        int msgToExtractCount = 0;
+        int attToExtractCount = 0;
+        int attToDownloadCount = 0;  // Attachments downloaded by ID, when Gmail doesn't get modified
+        long attToExtractSize = 0;
+        long msgToExtractSize = 0;
+        Multiset<String> extractedAttMimeTypes = HashMultiset.create();
+        Multiset<String> filteredAttMimeTypes = HashMultiset.create();
+
+        for (Message msg : index.getMessages()) {
+            List<String> mimeTypes = new ArrayList<>();
+            int attCount = 0;
+            if (msg.getPayload().getParts() != null) {
+                for (MessagePart part : msg.getPayload().getParts()) {
+                    if (part.getFilename() == null || part.getFilename().isEmpty()) continue;
+                    Long size = part.getBody() != null && part.getBody().getSize() != null ? part.getBody().getSize().longValue() : null;
+                    if (options.filter.matches(part.getFilename(), part.getMimeType(), size)) {
+                        attCount++;
+                        attToExtractSize += size;
+                        extractedAttMimeTypes.add(part.getMimeType());
+                        if (part.getBody().getAttachmentId() != null) attToDownloadCount++;
+                    } else {
+                        mimeTypes.add(part.getMimeType());
+                    }
+                }
+            }
+            if (attCount > 0) {
+                msgToExtractCount++;
+                attToExtractCount += attCount;
+                msgToExtractSize += msg.getSizeEstimate() != null ? msg.getSizeEstimate() : 0;
+            } else {
+                filteredAttMimeTypes.addAll(mimeTypes);
+            }
+        }
+
+        // Quota units used by the run - listing messages, getting metadata of every message, and then
+        // either getting, inserting and labelling every message to extract, or downloading its attachments
+        long pagesCount = (msgCount + GmailAttachmentsExtractor.MESSAGES_PAGE_SIZE - 1) / GmailAttachmentsExtractor.MESSAGES_PAGE_SIZE;
+        long listingUnits = pagesCount * QuotaRateLimiter.getQuotaUnits("messages.list");
+        long metadataUnits = (long) msgCount * QuotaRateLimiter.getQuotaUnits("messages.get");
+        long extractionUnits;
+        if (options.modifyGmail) {
+            long labelUnits = options.batchLabel
+                    ? (msgToExtractCount + LabelBatcher.MAX_BATCH_SIZE - 1) / LabelBatcher.MAX_BATCH_SIZE * QuotaRateLimiter.getQuotaUnits("messages.batchModify")
+                    : (long) msgToExtractCount * QuotaRateLimiter.getQuotaUnits("messages.modify");
+            extractionUnits = (long) msgToExtractCount * (QuotaRateLimiter.getQuotaUnits("messages.get") + QuotaRateLimiter.getQuotaUnits("messages.insert")) + labelUnits;
+        } else {
+            extractionUnits = (long) attToDownloadCount * QuotaRateLimiter.getQuotaUnits("messages.attachments.get");
+        }
+        long totalUnits = listingUnits + metadataUnits + extractionUnits;
+
+        Log.info(
+                "\n=== PLAN ===\n" +
+                        "Query '" + options.queryString + "' matched " + msgCount + " email(s)\n" +
+                        "Would extract attachments from " + msgToExtractCount + " email(s)\n" +
+                        "Would extract " + attToExtractCount + " attachment(s)\n" +
+                        "Total size of attachments to extract: " + Utils.humanReadableByteCount(attToExtractSize) + "\n" +
+                        (options.modifyGmail ? "Would download " + Utils.humanReadableByteCount(msgToExtractSize) + " and upload ~" + Utils.humanReadableByteCount(Math.max(0, msgToExtractSize - attToExtractSize)) + " of email messages\n" : "") +
+                        "Attachments to extract types: " + extractedAttMimeTypes
+        );
+        if (!filteredAttMimeTypes.isEmpty())
+            Log.info("NOT extracted (filtered) attachments types: " + filteredAttMimeTypes);
+        Log.info(
+                "Estimated Gmail API quota usage: " + String.format("%,d", totalUnits) + " units" +
+                        " (" + String.format("%,d", metadataUnits) + " units less with --metadata-index " + options.planIndexFile + ")\n" +
+                        "Estimated run time at " + options.quotaUnitsPerSecond + " units/s: at least " + Utils.humanReadableDuration(totalUnits / options.quotaUnitsPerSecond) +
+                        " (" + Utils.humanReadableDuration((totalUnits - metadataUnits) / options.quotaUnitsPerSecond) + " with --metadata-index)"
+        );
+        if (options.noModifyGmail)
+            Log.info("Planned for a run with --no-modify-gmail");
+        Log.info("");
+    }
+}
@@ -1,11 +1,12 @@
 package pl.geek.tewu.gmail_attachments_extractor;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 public class DigestUtils {
@@ -166,6 +167,20 @@ public class DigestUtils {
         return digest;
     }
 
+    public static Map<String, MessageDigest> getDigests(final String... algorithms) {
+        final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+        for (String algorithm : algorithms)
+            digests.put(algorithm, getDigest(algorithm));
+        return digests;
+    }
+
+    public static Map<String, String> digestsHex(final Map<String, MessageDigest> digests) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, MessageDigest> entry : digests.entrySet())
+            result.put(entry.getKey(), encodeHexString(entry.getValue().digest()));
+        return result;
+    }
+
     public static String encodeHexString(final byte[] data) {
         return new String(encodeHex(data, DIGITS_LOWER));
     }
@@ -188,4 +203,109 @@ public class DigestUtils {
         return out;
     }
 
-}
\ No newline at end of file
+
+
+    ///// Streams /////
+
+    /**
+     * OutputStream that computes digests of all data written through it, using multiple algorithms at once.
+     */
+    public static class DigestingOutputStream extends FilterOutputStream {
+        private final Map<String, MessageDigest> digests;
+        private long byteCount = 0;
+
+        public DigestingOutputStream(final OutputStream out, final String... algorithms) {
+            super(out);
+            this.digests = getDigests(algorithms);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            for (MessageDigest digest : digests.values())
+                digest.update((byte) b);
+            byteCount++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            for (MessageDigest digest : digests.values())
+                digest.update(b, off, len);
+            byteCount += len;
+        }
+
+        /**
+         * Get hex encoded digests of the data written so far, by algorithm name. Resets the digests.
+         */
+        public Map<String, String> getDigestsHex() {
+            return digestsHex(digests);
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+    }
+
+    /**
+     * InputStream that computes digests of all data read through it, using multiple algorithms at once.
+     */
+    public static class DigestingInputStream extends FilterInputStream {
+        private final Map<String, MessageDigest> digests;
+        private long byteCount = 0;
+
+        public DigestingInputStream(final InputStream in, final String... algorithms) {
+            super(in);
+            this.digests = getDigests(algorithms);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                for (MessageDigest digest : digests.values())
+                    digest.update((byte) b);
+                byteCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read > 0) {
+                for (MessageDigest digest : digests.values())
+                    digest.update(b, off, read);
+                byteCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // Skipped data must be digested too
+            final byte[] buffer = new byte[STREAM_BUFFER_LENGTH];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0)
+                skipped += read;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Get hex encoded digests of the data read so far, by algorithm name. Resets the digests.
+         */
+        public Map<String, String> getDigestsHex() {
+            return digestsHex(digests);
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * FileChannelOutputStream writes a file through FileChannel, using a large direct buffer (reused by streams opened
+ * one after another in the same thread) - so that data goes to the file in few large writes, without the JDK copying
+ * it to a temporary direct buffer first.
+ * <p>
+ * The file can be moved or deleted while it's open (also on Windows). On close, the channel can be handed over
+ * to a FileSyncGroup, to be synced to disk together with other files, instead of being closed right away.
+ */
+public class FileChannelOutputStream extends OutputStream {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> freeBuffers = new ThreadLocal<>();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileSyncGroup syncGroup;
+    private ByteBuffer buffer;
+    private long byteCount = 0;
+
+
+    /**
+     * Open the new (empty) file for writing.
+     * syncGroup is the group to hand the channel over to on close, or null to just close the channel.
+     */
+    public FileChannelOutputStream(Path file, FileSyncGroup syncGroup) throws IOException {
+        this.file = file;
+        this.syncGroup = syncGroup;
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        buffer = freeBuffers.get();
+        freeBuffers.remove();
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) flushBuffer();
+        buffer.put((byte) b);
+        byteCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) flushBuffer();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            byteCount += n;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Get the number of bytes written - it's the size of the file after close.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) return;
+        try {
+            flushBuffer();
+        } catch (IOException | RuntimeException exc) {
+            channel.close();
+            throw exc;
+        } finally {
+            buffer.clear();
+            freeBuffers.set(buffer);
+            buffer = null;
+        }
+        if (syncGroup != null) syncGroup.add(file, channel);
+        else channel.close();
+    }
+}
@@ -0,0 +1,153 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+
+/**
+ * FileNameSanitizer turns arbitrary strings (e.g. attachment file names, or email subjects) into names of files and
+ * directories, that are valid on the file system of the output directory - without touching the file system.
+ * Rules of the file system (forbidden characters and reserved names, max length of a name, and whether names can
+ * contain non-ASCII characters) are detected once, for the output root directory. Names are sanitized in a
+ * single pass, replacing only the characters that aren't allowed, so valid names are kept as they are.
+ * <p>
+ * When the type of the file system isn't known, the rules of Windows file systems are used, as names valid
+ * on them are also valid on POSIX file systems.
+ */
+public class FileNameSanitizer {
+    public static final int MAX_NAME_LENGTH = 255;  // In bytes (UTF-8) on POSIX file systems, in UTF-16 code units on Windows
+    public static final int UNIQUE_SUFFIX_RESERVE = 16;  // Room left for suffixes making names unique (e.g. " 2")
+    public static final char REPLACEMENT_CHAR = '_';
+    private static final String WINDOWS_FORBIDDEN_CHARS = "<>:\"|?*";
+    // Types of file systems allowing every character except '/' and NUL - on all other file systems (e.g. NTFS, FAT, SMB shares) Windows rules apply
+    private static final Set<String> POSIX_FS_TYPES = new HashSet<>(Arrays.asList(
+            "ext2", "ext3", "ext4", "xfs", "btrfs", "zfs", "tmpfs", "overlay", "f2fs", "reiserfs", "jfs", "nfs", "nfs4", "ecryptfs", "apfs", "hfs"));
+    private static final Set<String> WINDOWS_RESERVED_NAMES = new HashSet<>(Arrays.asList(
+            "CON", "PRN", "AUX", "NUL", "COM1", "COM2", "COM3", "COM4", "COM5", "COM6", "COM7", "COM8", "COM9",
+            "LPT1", "LPT2", "LPT3", "LPT4", "LPT5", "LPT6", "LPT7", "LPT8", "LPT9"));
+
+    private final boolean windowsRules;  // Forbid characters and names that Windows doesn't allow
+    private final boolean utf16Length;  // Measure length of names in UTF-16 code units, instead of UTF-8 bytes
+    private final boolean asciiOnly;  // Names can't be encoded with non-ASCII characters (e.g. JVM runs with non-Unicode locale)
+
+
+    FileNameSanitizer(boolean windowsRules, boolean utf16Length, boolean asciiOnly) {
+        this.windowsRules = windowsRules;
+        this.utf16Length = utf16Length;
+        this.asciiOnly = asciiOnly;
+    }
+
+    /**
+     * Detect rules of the file system of the directory (or of its nearest existing ancestor). Detection probes
+     * the file system, so the sanitizer should be reused for all directories below the given one.
+     * Mount points below the given directory aren't taken into account.
+     */
+    public static FileNameSanitizer forDirectory(Path dir) {
+        dir = dir.toAbsolutePath();
+        boolean isWindows = File.separatorChar == '\\';
+        String fsType = "";
+        Path existing = dir;
+        while (existing != null && !Files.exists(existing))
+            existing = existing.getParent();
+        if (existing != null) {
+            try {
+                fsType = Files.getFileStore(existing).type().toLowerCase(Locale.ROOT);
+            } catch (IOException | SecurityException exc) {
+                // Type unknown - use the rules of Windows file systems
+            }
+        }
+        boolean windowsRules = isWindows || !POSIX_FS_TYPES.contains(fsType);
+        String pathEncoding = System.getProperty("sun.jnu.encoding");
+        boolean unicodePaths = isWindows || (pathEncoding != null && Charset.isSupported(pathEncoding) && Charset.forName(pathEncoding).equals(StandardCharsets.UTF_8));
+        return new FileNameSanitizer(windowsRules, isWindows, !unicodePaths);
+    }
+
+
+    public String sanitizeFileName(String name) {
+        return sanitize(name, true);
+    }
+
+    public String sanitizeDirName(String name) {
+        return sanitize(name, false);
+    }
+
+    private String sanitize(String name, boolean isFile) {
+        // Replace characters that aren't allowed, measuring length of the name on the way
+        StringBuilder sb = new StringBuilder(name.length());
+        int length = 0;
+        for (int i = 0; i < name.length(); ) {
+            int c = name.codePointAt(i);
+            i += Character.charCount(c);
+            if (!isAllowed(c)) c = REPLACEMENT_CHAR;
+            sb.appendCodePoint(c);
+            length += length(c);
+        }
+        stripEnd(sb);
+
+        int maxLength = MAX_NAME_LENGTH - UNIQUE_SUFFIX_RESERVE;
+        if (length > maxLength) truncate(sb, isFile, maxLength);
+
+        if (windowsRules) {
+            int dot = sb.indexOf(".");
+            String stem = (dot == -1 ? sb.toString() : sb.substring(0, dot)).trim();
+            if (WINDOWS_RESERVED_NAMES.contains(stem.toUpperCase(Locale.ROOT))) sb.insert(0, REPLACEMENT_CHAR);
+        }
+        if (sb.length() == 0) sb.append(REPLACEMENT_CHAR);
+        return sb.toString();
+    }
+
+    private boolean isAllowed(int c) {
+        if (c == '/' || c == '\\' || c < 32 || c == 127) return false;
+        if (asciiOnly && c > 127) return false;
+        return !windowsRules || WINDOWS_FORBIDDEN_CHARS.indexOf(c) == -1;
+    }
+
+    private int length(int codePoint) {
+        if (utf16Length) return Character.charCount(codePoint);
+        if (codePoint < 0x80) return 1;
+        if (codePoint < 0x800) return 2;
+        return codePoint < 0x10000 ? 3 : 4;
+    }
+
+    private int length(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); ) {
+            int c = str.codePointAt(i);
+            i += Character.charCount(c);
+            length += length(c);
+        }
+        return length;
+    }
+
+    // Cut the name to maxLength, keeping extension of a file name (if it's not too long)
+    private void truncate(StringBuilder sb, boolean isFile, int maxLength) {
+        int dot = isFile ? sb.lastIndexOf(".") : -1;
+        String extension = dot > 0 && sb.length() - dot <= Utils.FILE_EXT_MAX_LEN + 1 ? sb.substring(dot) : "";
+        if (!extension.isEmpty()) sb.setLength(dot);
+        int maxStemLength = maxLength - length(extension);
+        int end = 0;
+        int length = 0;
+        while (end < sb.length()) {
+            int c = sb.codePointAt(end);
+            if (length + length(c) > maxStemLength) break;
+            length += length(c);
+            end += Character.charCount(c);
+        }
+        sb.setLength(end);
+        stripEnd(sb);
+        sb.append(extension);
+    }
+
+    // Names can't end with a dot or whitespace on Windows, and such names are confusing everywhere
+    private static void stripEnd(StringBuilder sb) {
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == '.' || Character.isWhitespace(sb.charAt(end - 1))))
+            end--;
+        sb.setLength(end);
+    }
+}
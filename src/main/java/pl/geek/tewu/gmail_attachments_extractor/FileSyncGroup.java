@@ -0,0 +1,88 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * FileSyncGroup keeps channels of written files open, and syncs them to disk all at once (e.g. all attachment files
+ * of an email message, before the copy of the message is inserted to Gmail). File systems with a journal (e.g. ext4,
+ * XFS) commit it once for syncs made close together, so the group pays for durability about once, not once per file.
+ * Directories of the files, and their parents, are synced too - so that names of new files (and of new directories
+ * holding them) survive a power failure as well.
+ */
+public class FileSyncGroup implements Closeable {
+    private final Map<Path, FileChannel> channels = new LinkedHashMap<>();
+    private boolean closed = false;
+
+
+    synchronized void add(Path file, FileChannel channel) throws IOException {
+        if (closed) {  // E.g. a file written by a cancelled download
+            channel.close();
+            return;
+        }
+        FileChannel previous = channels.put(file, channel);
+        if (previous != null) previous.close();
+    }
+
+    /**
+     * Close the channel of the file without syncing it - e.g. before the file gets deleted.
+     */
+    public synchronized void discard(Path file) throws IOException {
+        FileChannel channel = channels.remove(file);
+        if (channel != null) channel.close();
+    }
+
+    /**
+     * Sync all files of the group to disk, and then their directories (and parents of the directories), and close
+     * channels of the files. Contents of files moved after they have been written are synced as well.
+     */
+    public synchronized void sync() throws IOException {
+        try {
+            Set<Path> dirs = new LinkedHashSet<>();
+            for (Map.Entry<Path, FileChannel> entry : channels.entrySet()) {
+                entry.getValue().force(false);
+                Path dir = entry.getKey().toAbsolutePath().getParent();
+                dirs.add(dir);
+                if (dir.getParent() != null) dirs.add(dir.getParent());
+            }
+            for (Path dir : dirs)
+                syncDirectory(dir);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Sync entries of the directory (names of the files and directories in it) to disk.
+     */
+    public static void syncDirectory(Path dir) throws IOException {
+        if (File.separatorChar == '\\') return;  // Directories can't be opened on Windows - NTFS journals their changes together with the files
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException closeExc = null;
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException exc) {
+                closeExc = exc;
+            }
+        }
+        channels.clear();
+        closed = true;
+        if (closeExc != null) throw closeExc;
+    }
+}
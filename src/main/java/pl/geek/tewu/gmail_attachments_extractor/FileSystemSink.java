@@ -0,0 +1,59 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * FileSystemSink saves every attachment as a file in the output directory.
+ */
+public class FileSystemSink implements OutputSink {
+    private final NameRegistry nameRegistry = new NameRegistry();
+
+
+    @Override
+    public void createDirectories(Path dir) throws IOException {
+        Files.createDirectories(dir);
+    }
+
+    @Override
+    public Path createDirectory(Path parent, String name, int maxNum) throws IOException {
+        return nameRegistry.createDirectory(parent, name, maxNum);
+    }
+
+    @Override
+    public Path createFile(Path dir, String name, int maxNum) throws IOException {
+        return nameRegistry.createFile(dir, name, maxNum);
+    }
+
+    @Override
+    public void releaseDirectory(Path dir) {
+        nameRegistry.release(dir);
+    }
+
+    @Override
+    public OutputStream openFile(Path file, long expectedSize, FileSyncGroup syncGroup) throws IOException {
+        return new FileChannelOutputStream(file, syncGroup);  // Size doesn't matter - files are written in large chunks anyway
+    }
+
+    @Override
+    public long size(Path file) throws IOException {
+        return Files.size(file);
+    }
+
+    @Override
+    public Path commit(Path file) {
+        return null;  // File is already in place
+    }
+
+    @Override
+    public void delete(Path file) throws IOException {
+        Files.delete(file);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,10 +1,18 @@
 package pl.geek.tewu.gmail_attachments_extractor;
 
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.repackaged.org.apache.commons.codec.binary.Base64;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.*;
-import com.google.common.collect.HashMultiset;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
@@ -14,10 +22,9 @@ import javax.mail.internet.MailDateFormat;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.*;
 import java.lang.Thread;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
@@ -26,7 +33,12 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static pl.geek.tewu.gmail_attachments_extractor.Options.DEFAULT_FILENAME_REGEX_STR;
 import static pl.geek.tewu.gmail_attachments_extractor.Options.DEFAULT_MIME_TYPE_REGEX_STR;
@@ -36,249 +48,953 @@ public class GmailAttachmentsExtractor {
     public static final String PRE_LABEL_SUFFIX = " [pre]";
     public static final String POST_LABEL_SUFFIX = " [post]";
     public static final String DELETED_FILE_PREFIX = "Deleted ";
+    public static final String BATCH_PATH = "batch/gmail/v1";
+    public static final int MAX_BATCH_SIZE = 100;
+    public static final long MESSAGES_PAGE_SIZE = 500;
+    public static final String STATE_DIR_NAME = ".extractor";
+    public static final String MESSAGE_IDS_FILE_NAME = "message-ids.txt";
+    public static final String SPILL_DIR_PREFIX = "spill-";
+    public static final String BLOBS_DIR_NAME = "blobs";
+    public static final String JOURNAL_FILE_NAME = "journal.txt";
+    public static final String COPIES_DIR_NAME = "copies";
+    public static final String HISTORY_ID_FILE_NAME = "history-id.txt";
+    public static final int AUTO_FETCH_MIN_SAMPLE = 20;
+    public static final double AUTO_RAW_FETCH_MIN_HIT_RATE = 0.9;
 
+    private Gmail gmail;
     private Gmail.Users.Labels gmailLabels;
     private Gmail.Users.Messages gmailMessages;
     private String userId;
     private Map<String, Label> labelsByName;
     private Map<String, Label> labelsById;
+    private Label preLabel;
+    private Label postLabel;
+    private LabelBatcher labelBatcher;
     private Options options;
-    private int globalUniqueNum;
+    private OutputSink outputSink;
+    private FileNameSanitizer fileNameSanitizer;
+    private final Set<Path> layoutDirs = new HashSet<>();  // Directories of the output layout, that have been created already
+    private final List<RuntimeException> ignoredExceptions = new LinkedList<>();
+    private MessageIdSnapshot messageIds;
+    private Path spillDir;
+    private boolean downloadAttachmentsById;
+    private ExecutorService attachmentDownloader;
+    private ExecutorService compressor;
+    private BlobStore blobStore;
+    private Journal journal;
+    private Path copiesDir;
+    private MetadataIndex metadataIndex;
+    private Metrics metrics;
 
     // Summary statistics
-    private int msgProcessedCount;
-    private int msgExtractedCount;
-    private int extractedAttCount;
-    private long totalExtractedAttSize;
-    private HashMultiset<String> extractedAttMimeTypes;
-    private HashMultiset<String> filteredAttMimeTypes;
+    private AtomicInteger msgProcessedCount;
+    private AtomicInteger msgExtractedCount;
+    private AtomicInteger extractedAttCount;
+    private AtomicLong totalExtractedAttSize;
+    private AtomicLong totalStoredAttSize;
+    private AtomicInteger duplicateAttCount;
+    private AtomicLong duplicateAttSize;
+    private ConcurrentHashMultiset<String> extractedAttMimeTypes;
+    private ConcurrentHashMultiset<String> filteredAttMimeTypes;
+
+    // Statistics of the attachment filter, used by the auto fetch strategy
+    private AtomicInteger filterEvaluatedCount;
+    private AtomicInteger filterSatisfiedCount;
+    private volatile boolean rawFetchPreferred;
 
 
     public GmailAttachmentsExtractor(Gmail gmail, String userId, Options options) {
         this.userId = userId;
+        this.gmail = gmail;
         this.gmailLabels = gmail.users().labels();
         this.gmailMessages = gmail.users().messages();
         this.options = options;
-        this.globalUniqueNum = 0;
     }
 
     public boolean extractAttachments() throws IOException, MessagingException, ParseException, InterruptedException {
-        List<RuntimeException> ignoredExceptions = new LinkedList<>();
+        // Print output in the background, so that processing doesn't wait for it
+        Log.start(options.logLevel, options.logFormat);
+        try {
+            return extract();
+        } finally {
+            Log.stop();
+        }
+    }
+
+    private boolean extract() throws IOException, MessagingException, ParseException, InterruptedException {
+        ignoredExceptions.clear();
+        layoutDirs.clear();
         resetStats();
+        initMetrics();
         printStartMessage();
 
-        // Check if main output directory already exists
-        if (options.outputDir.toFile().exists()) {
-            System.err.println("Output directory '" + options.outputDir + "' already exists - move it or provide different output directory path - Terminating.");
+        // Check if main output directory already exists - unless resuming the run that created it
+        Path stateDir = options.outputDir.resolve(STATE_DIR_NAME);
+        if (options.resume) {
+            if (!stateDir.resolve(JOURNAL_FILE_NAME).toFile().exists()) {
+                Log.error("Output directory '" + options.outputDir + "' doesn't contain a run that can be resumed - Terminating.");
+                return false;
+            }
+        } else if (options.outputDir.toFile().exists()) {
+            Log.error("Output directory '" + options.outputDir + "' already exists - move it or provide different output directory path" + (stateDir.toFile().exists() ? ", or resume the run that created it with --resume option" : "") + " - Terminating.");
             return false;
         }
 
-        // Get email messages matching queryString
-        ListMessagesResponse msgsResp = getGmailMessagesPage(null);
-        long msgsCount = msgsResp.getResultSizeEstimate() == null ? 0 : msgsResp.getResultSizeEstimate();
-        String msgsCountEstimatedChar = msgsResp.getNextPageToken() == null ? "" : "~";
-        List<Message> msgs = msgsResp.getMessages();
-        if (msgs == null || msgs.isEmpty()) {
-            System.out.println("No messages matched query '" + options.queryString + "' - Terminating.");
-            return false;
+        // Load index of metadata of email messages, if requested
+        metadataIndex = null;
+        if (options.metadataIndexFile != null) {
+            MetadataIndex index = MetadataIndex.read(options.metadataIndexFile);
+            if (Objects.equals(index.getQuery(), options.queryString)) {
+                metadataIndex = index;
+                Log.info("Using metadata of " + index.size() + " email messages from index '" + options.metadataIndexFile + "', created " + Instant.ofEpochMilli(index.getCreatedMillis()));
+            } else {
+                Log.warn("WARNING: Metadata index '" + options.metadataIndexFile + "' has been created for a different query ('" + index.getQuery() + "') - ignoring it.");
+            }
         }
 
+        // In incremental mode, get mailbox history ID before listing messages, so that messages added while this run lasts are processed by the next run
+        BigInteger startHistoryId = null;
+        if (options.incrementalStateFile != null)
+            startHistoryId = options.resume ? IncrementalSync.readHistoryId(stateDir.resolve(HISTORY_ID_FILE_NAME)) : new IncrementalSync(gmail, userId, this::newBatchRequest, options.metadataBatchSize).getCurrentHistoryId();
+
         // Build label dictionaries
         buildLabelDictionaries();
 
+        // Get first page of email messages matching queryString - in incremental mode, it's the only page, and contains only messages added since the previous run
+        ListMessagesResponse msgsResp = null;
+        if (!options.resume) {
+            msgsResp = options.incrementalStateFile != null ? getNewMessagesPage() : null;
+            if (msgsResp == null) msgsResp = getGmailMessagesPage(null);
+            List<Message> msgs = msgsResp.getMessages();
+            if (msgs == null || msgs.isEmpty()) {
+                if (options.incrementalStateFile != null) {
+                    Log.info("No new messages matched query '" + options.queryString + "' since the previous run - Terminating.");
+                    IncrementalSync.saveHistoryId(options.incrementalStateFile, startHistoryId);
+                    return true;
+                }
+                Log.info("No messages matched query '" + options.queryString + "' - Terminating.");
+                return false;
+            }
+        }
+
         // Create output labels
-        Label preLabel = null;
-        Label postLabel = null;
+        preLabel = null;
+        postLabel = null;
         if (options.modifyGmail) {
             String preLabelName = options.outputLabelsPrefix + PRE_LABEL_SUFFIX;
             String postLabelName = options.outputLabelsPrefix + POST_LABEL_SUFFIX;
-            if (labelsByName.containsKey(preLabelName) || labelsByName.containsKey(postLabelName)) {
-                System.err.println("Labels '" + preLabelName + "' and/or '" + postLabelName + "' already exist. Running this program when this labels already exist might lead to confusing results. Please provide different output labels prefix and try again. Note that removing those labels is probably not a good solution, as it may prevent you from distinguishing between emails with attachments and its copies without attachments - Terminating.");
+            preLabel = labelsByName.get(preLabelName);
+            postLabel = labelsByName.get(postLabelName);
+            if (options.resume && (preLabel == null || postLabel == null)) {
+                Log.error("Labels '" + preLabelName + "' and/or '" + postLabelName + "', created by the resumed run, don't exist - Terminating.");
                 return false;
             }
-            System.out.printf("Creating output labels '%s' and '%s'\n", preLabelName, postLabelName);
-            preLabel = createLabel(preLabelName);
-            postLabel = createLabel(postLabelName);
-        }
-
-        System.out.println("Query '" + options.queryString + "' matched " + msgsCountEstimatedChar + msgsCount + " email messages\n");
-
-        do { // Process page (batch) of emails
-
-            // Process email messages
-            for (Message msgIds : msgs) {
-                Thread.sleep(options.interMessageWait);
-                try { // "Fail late" check
-                    msgProcessedCount++;
-                    List<Long> attachmentSizes = new LinkedList<>();
-                    Message msg = gmailMessages.get(userId, msgIds.getId()).execute();
-
-                    Optional<String> maybeSubject = msg.getPayload().getHeaders().stream().filter(h -> Objects.equals(h.getName(), "Subject") && !h.getValue().trim().isEmpty()).map(h -> h.getValue()).findFirst();
-                    String oldMessageId = msg.getPayload().getHeaders().stream().filter(h -> Objects.equals(h.getName(), "Message-ID") && !h.getValue().trim().isEmpty()).map(h -> h.getValue()).findFirst().orElse("MISSING");
-                    int percentProgress = (int) (100 * msgProcessedCount / msgsCount);
-                    System.out.println(msgProcessedCount + "/" + msgsCountEstimatedChar + msgsCount + " (" + percentProgress + "%) | Processing email " + (maybeSubject.isPresent() ? "'" + maybeSubject.get() + "'" : "with Message-ID " + oldMessageId));
-
-                    int attachmentToExtractCount = 0;
-                    List<String> mimeTypes = new LinkedList<>();
-                    if (msg.getPayload().getParts() != null) {  // If msg's MIME type is multipart
-                        for (MessagePart part : msg.getPayload().getParts()) {
-                            if (part.getFilename() != null && !part.getFilename().isEmpty())  // If part doesn't have a filename, then it's not an attachment
-                                mimeTypes.add(part.getMimeType());
-                            if (part.getBody() == null)
-                                continue;
-                            long size = part.getBody().getSize().longValue();
-                            if (isBodyPartSatisfiesFilter(part.getFilename(), part.getMimeType(), size)) {
-                                attachmentToExtractCount++;
-                                attachmentSizes.add(size);
-                            }
-                        }
-                    }
-                    if (attachmentToExtractCount == 0) {
-                        System.out.println("    Email doesn't contain attachments that satisfy the filter - proceeding to the next email");
-                        filteredAttMimeTypes.addAll(mimeTypes);
-                        continue;
-                    }
+            // Labels are reused by consecutive incremental runs
+            if (!options.resume && options.incrementalStateFile == null && (preLabel != null || postLabel != null)) {
+                Log.error("Labels '" + preLabelName + "' and/or '" + postLabelName + "' already exist. Running this program when this labels already exist might lead to confusing results. Please provide different output labels prefix and try again. Note that removing those labels is probably not a good solution, as it may prevent you from distinguishing between emails with attachments and its copies without attachments - Terminating.");
+                return false;
+            }
+            if (preLabel == null || postLabel == null) {
+                Log.info(String.format("Creating output labels '%s' and '%s'", preLabelName, postLabelName));
+                if (preLabel == null) preLabel = createLabel(preLabelName);
+                if (postLabel == null) postLabel = createLabel(postLabelName);
+            }
+        }
 
-                    Message rawMsg = getRawMessage(msgIds.getId());
-                    AccessibleMimeMessage mimeMsg = rawMessageToMimeMessage(rawMsg);
-                    String messageId = mimeMsg.generateNextMessageID();
-                    String messageSubject = mimeMsg.getSubject() != null ? mimeMsg.getSubject() : "";
-                    Instant receiveDate = new MailDateFormat().parse(mimeMsg.getHeader("Date", null)).toInstant();
-                    Path attachmentsDir = createDirForAttachments(receiveDate, messageSubject);
-
-                    System.out.println("    Extracting " + attachmentToExtractCount + " attachment(s) to directory '" + attachmentsDir.getFileName() + "'");
-
-                    BodyPart[] parts = getParts(mimeMsg);
-                    for (BodyPart part : parts) {
-                        // Extract information about body part
-                        String fileName = Utils.getPartFileName(part, options.unsafe);
-                        if (fileName != null) fileName = MimeUtility.decodeText(fileName);
-                        if (fileName == null || fileName.isEmpty()) // If part doesn't have a filename, then it's not an attachment - skip it (don't extract it)
-                            continue;
-                        String unsanitizedFileName = fileName;
-                        fileName = Utils.resolvingSanitizeFileName(attachmentsDir, fileName);
-                        fileName = Utils.findUniqueFileName(attachmentsDir, fileName, 100);  // There can be multiple files with the same name, because file name can change during sanitization, or because the headers can be malformed (see Utils.getPartFileName)
-                        Path filePath = attachmentsDir.resolve(fileName);
-                        String contentType = part.getContentType();
-                        String mimeType = contentType.indexOf(";") > 0 ?
-                                contentType.substring(0, contentType.indexOf(";")) :
-                                contentType;
-                        // Save part to file
-                        saveToFile(part, filePath);
-                        // Calculate part/file size
-                        long fileSize = Files.size(filePath);
-
-                        // Check if part should be extracted
-                        if (isBodyPartSatisfiesFilter(unsanitizedFileName, mimeType, fileSize)) {  // Use unsanitized version of file name for filtering, because unsanitized version is the same as returned by MessagePart.getFilename call before
-                            // If part should be extracted, override its content with descriptor string (effectively deleting it from email message)
-                            boolean removed = attachmentSizes.remove(fileSize);
-                            if (options.validate && !removed) throw new RuntimeException("Incorrect exported file size");
-                            System.out.println("    Attachment saved: " + fileName);
-                            if (options.modifyGmail) {
-                                String descriptor = buildDescriptorString(part, messageId, messageSubject, receiveDate, fileName, fileSize);  // buildDescriptorString must be called BEFORE modifying the part
-                                part.setFileName(DELETED_FILE_PREFIX + fileName + ".yml");
-                                part.setContent(descriptor, "text/plain; charset=\"" + (Utils.isAllPrintableASCII(descriptor) ? "US-ASCII" : "UTF-8") + "\"");
-                            }
-                            extractedAttCount++;
-                            totalExtractedAttSize += fileSize;
-                            extractedAttMimeTypes.add(mimeType);
-                        } else {
-                            // If part should not be extracted, delete it from local filesystem
-                            Files.delete(filePath);
-                            System.out.println("    Attachment NOT saved: " + unsanitizedFileName);  // File not extracted from the email message - so display file name as it appears in the message (not its sanitized version)
-                            filteredAttMimeTypes.add(mimeType);
-                        }
-                    }
-                    if (options.validate && !attachmentSizes.isEmpty()) throw new RuntimeException("One of attachments hasn't been exported properly");
-                    setParts(mimeMsg, parts);
-
-                    if (options.modifyGmail) {
-                        if (preLabel == null || postLabel == null) throw new IllegalStateException("preLabel and postLabel can't be null");
-                        // Build message based on mimeMsg and rawMsg and insert it to Gmail
-                        System.out.println("    Inserting copy of email without extracted attachments to Gmail");
-                        List<String> labelIds = rawMsg.getLabelIds();
-                        if (labelIds == null) labelIds = new LinkedList<>();
-                        else {
-                            labelIds = labelIds.stream()
-                                    .filter(id -> {
-                                        String name = labelsById.get(id).getName();
-                                        return !name.endsWith(PRE_LABEL_SUFFIX) && !name.endsWith(POST_LABEL_SUFFIX);
-                                    })
-                                    .collect(Collectors.toList());
-                        }
-                        labelIds.add(postLabel.getId());
-                        insertMessage(mimeMsg, labelIds, rawMsg.getThreadId());
-
-                        // Add label to the original message
-                        addLabelToMessage(rawMsg, preLabel);
-                    }
+        // Snapshot IDs of all email messages matching queryString - remaining pages are fetched in the background
+        Files.createDirectories(stateDir);
+        if (options.syncAttachments && options.outputDir.getParent() != null) FileSyncGroup.syncDirectory(options.outputDir.getParent());  // Output directory may be new
+        if (options.resume) {
+            messageIds = MessageIdSnapshot.resume(stateDir.resolve(MESSAGE_IDS_FILE_NAME));
+            messageIds.resumeListing(this::getGmailMessagesPage);
+        } else {
+            messageIds = new MessageIdSnapshot(stateDir.resolve(MESSAGE_IDS_FILE_NAME));
+            messageIds.startListing(msgsResp, this::getGmailMessagesPage);
+        }
 
-                    msgExtractedCount++;
-                } catch (RuntimeException exc) {
-                    if (!options.failLate) throw exc;
-                    else {
-                        ignoredExceptions.add(exc);
-                        System.out.println("    ! Error processing email (ERROR #" + ignoredExceptions.size() + ") - proceeding to the next email");
-                    }
+        if (startHistoryId != null && !options.resume) IncrementalSync.saveHistoryId(stateDir.resolve(HISTORY_ID_FILE_NAME), startHistoryId);
+
+        // Open journal of processing state of email messages, and directory for message copies prepared for insertion
+        journal = new Journal(stateDir.resolve(JOURNAL_FILE_NAME));
+        copiesDir = Files.createDirectories(stateDir.resolve(COPIES_DIR_NAME));
+        if (options.resume) Log.info("Resuming run - " + journal.size() + " email messages have been (at least partially) processed already");
+
+        // Create directory for temporary files holding large email messages
+        Path tempDir = Files.createDirectories(options.tempDir != null ? options.tempDir : stateDir);
+        spillDir = Files.createTempDirectory(tempDir, SPILL_DIR_PREFIX);
+
+        // Open sink of extracted attachments - files in the output directory, or archives
+        outputSink = createOutputSink();
+        fileNameSanitizer = FileNameSanitizer.forDirectory(options.outputDir);  // Rules of the file system are detected once - they apply to all directories of the output layout
+
+        // Open deduplicating store of attachments, if requested
+        blobStore = options.dedup ? new BlobStore(options.dedupStoreDir != null ? options.dedupStoreDir : stateDir.resolve(BLOBS_DIR_NAME)) : null;
+
+        Log.info("Query '" + options.queryString + "' matched " + getMessagesCountString() + " email messages\n");
+
+        // Add labels to original emails in bulk, if requested
+        labelBatcher = options.modifyGmail && options.batchLabel ? new LabelBatcher(gmailMessages, userId, preLabel.getId(), this::recordLabelled) : null;
+        Thread flushLabelsOnShutdown = new Thread(this::flushPendingLabelsOnShutdown);
+        if (labelBatcher != null) Runtime.getRuntime().addShutdownHook(flushLabelsOnShutdown);
+
+        // When Gmail doesn't get modified, attachments can be downloaded directly, without downloading and parsing whole messages.
+        // Unsafe mode needs the whole messages, as it works around malformed MIME headers
+        downloadAttachmentsById = !options.modifyGmail && !options.unsafe;
+        if (downloadAttachmentsById)
+            attachmentDownloader = Executors.newFixedThreadPool(options.attachmentDownloads, runnable -> {
+                Thread thread = new Thread(runnable, "attachment-downloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        compressor = options.compress ? Executors.newFixedThreadPool(options.compressionThreads, runnable -> {
+            Thread thread = new Thread(runnable, "compressor");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+
+        if (options.metricsEnabled) metrics.startExport(options.metricsJsonFile, options.metricsPrometheusFile, options.metricsIntervalSeconds);
+        if (options.progressIntervalSeconds > 0) startProgress();
+        boolean completed = false;
+        try {
+            processMessages();
+            completed = true;
+        } finally {
+            if (options.metricsEnabled) {
+                try {
+                    metrics.stopExport(options.metricsJsonFile, options.metricsPrometheusFile);
+                } catch (IOException exc) {
+                    Log.warn("WARNING: Failed to save metrics: " + exc);
+                }
+            }
+            if (attachmentDownloader != null) attachmentDownloader.shutdownNow();
+            if (compressor != null) compressor.shutdownNow();
+            if (blobStore != null) blobStore.close();
+            outputSink.close();
+            messageIds.close();
+            try {
+                Utils.deleteRecursively(spillDir);
+            } catch (IOException exc) {
+                Log.warn("Failed to delete temporary directory '" + spillDir + "': " + exc);
+            }
+            try {
+                if (labelBatcher != null) {
+                    Runtime.getRuntime().removeShutdownHook(flushLabelsOnShutdown);
+                    if (completed) flushPendingLabels();
+                    else tryFlushPendingLabels();  // Don't let a failure here hide the exception that stopped the processing
                 }
+            } finally {
+                journal.close();
             }
+        }
 
-            // Fetch next page (batch) of emails
-            if (msgsResp.getNextPageToken() != null) {
-                System.out.println("Fetching next batch of emails");
-                msgsResp = getGmailMessagesPage(msgsResp.getNextPageToken());
-                msgsCount = msgProcessedCount + msgsResp.getResultSizeEstimate();
-                msgs = msgsResp.getMessages();
-            } else msgs = null;
-        } while (msgs != null);
+        // Let the next incremental run start where this run has started - unless some email messages haven't been processed successfully
+        if (startHistoryId != null) {
+            if (ignoredExceptions.isEmpty()) IncrementalSync.saveHistoryId(options.incrementalStateFile, startHistoryId);
+            else Log.warn("Some email messages haven't been processed successfully - the next incremental run will process all email messages added since the previous successful run.");
+        }
 
+        // Let the processing output be printed first, so that the summary can't be dropped from a full output buffer
+        Log.flush();
         printSummary();
+        if (options.metricsEnabled) printMetrics();
         printExceptions(ignoredExceptions);
         return ignoredExceptions.isEmpty();
     }
 
 
+    /**
+     * Process all email messages matching queryString, taking their IDs from the snapshot.
+     */
+    private void processMessages() throws IOException, MessagingException, ParseException, InterruptedException {
+        // When processing in parallel, every stage of message processing gets its own pool of threads
+        StagedPipeline<MessageTask> pipeline = null;
+        if (options.parallelism > 1) {
+            int queueCapacity = 2 * options.parallelism;
+            pipeline = new StagedPipeline<MessageTask>((task, exc) -> {
+                if (exc instanceof RuntimeException) handleMessageError(task, (RuntimeException) exc);
+                else throw exc;
+            });
+            pipeline.addStage("fetch", options.parallelism, queueCapacity, this::fetchMessage);
+            if (downloadAttachmentsById) {
+                pipeline.addStage("download", options.parallelism, queueCapacity, this::downloadAttachments);
+            } else {
+                pipeline.addStage("parse", options.parallelism, queueCapacity, this::parseMessage)
+                        .addStage("write", options.parallelism, queueCapacity, this::writeAttachments);
+            }
+            pipeline.addStage("insert", options.parallelism, queueCapacity, this::insertMessageCopy);
+            pipeline.start();
+        }
+
+        try {
+            List<String> ids;
+            while (!(ids = messageIds.next((int) MESSAGES_PAGE_SIZE)).isEmpty() && (pipeline == null || !pipeline.isAborted())) { // Process page (batch) of emails
+
+                // Skip email messages already processed by the resumed run
+                List<MessageTask> tasks = new ArrayList<>(ids.size());
+                for (String id : ids) {
+                    MessageTask task = getResumedTask(id);
+                    if (task != null) tasks.add(task);
+                    else msgProcessedCount.incrementAndGet();
+                }
+
+                // Take metadata of email messages from the index, if there is one
+                if (metadataIndex != null)
+                    for (MessageTask task : tasks)
+                        task.msg = metadataIndex.get(task.id);
+
+                for (int from = 0; from < tasks.size() && (pipeline == null || !pipeline.isAborted()); from += options.metadataBatchSize) {
+                    List<MessageTask> batchTasks = tasks.subList(from, Math.min(from + options.metadataBatchSize, tasks.size()));
+
+                    // Get metadata of email messages using a batch request - unless they are going to be fetched in raw format right away
+                    boolean fetchRaw = isRawFetchPreferred();
+                    List<MessageTask> metadataTasks = new ArrayList<>(batchTasks.size());
+                    for (MessageTask task : batchTasks) {
+                        task.fetchRaw = fetchRaw;
+                        if (task.msg == null && (!fetchRaw || task.resumedState != null)) metadataTasks.add(task);
+                    }
+                    getMessagesMetadata(metadataTasks);
+
+                    // Process email messages - the ones partially processed by the resumed run are finished in the current thread
+                    for (MessageTask task : batchTasks) {
+                        if (task.resumedState != null) resumeMessage(task);
+                        else if (pipeline == null) processMessage(task);
+                        else if (!pipeline.submit(task)) break;
+                    }
+                }
+
+                // Add labels to original emails, which processing has finished
+                if (labelBatcher != null) labelBatcher.flush();
+            }
+        } catch (IOException | RuntimeException | InterruptedException exc) {
+            if (pipeline != null) {
+                pipeline.abort(exc);
+                try {
+                    pipeline.finish();  // Wait for the messages that are being processed right now
+                } catch (Exception ignored) {
+                }
+            }
+            throw exc;
+        }
+
+        if (pipeline != null) {
+            try {
+                pipeline.finish();
+            } catch (IOException | MessagingException | ParseException | InterruptedException | RuntimeException exc) {
+                throw exc;
+            } catch (Exception exc) {
+                throw new RuntimeException(exc);
+            }
+        }
+    }
+
+    /**
+     * Process email message in the current thread, by running it through all processing stages.
+     */
+    private void processMessage(MessageTask task) throws IOException, MessagingException, ParseException, InterruptedException {
+        try { // "Fail late" check
+            if (fetchMessage(task) && (downloadAttachmentsById ? downloadAttachments(task) : parseMessage(task) && writeAttachments(task)))
+                insertMessageCopy(task);
+        } catch (RuntimeException exc) {
+            handleMessageError(task, exc);
+        }
+    }
+
+    /**
+     * Get task for the email message, based on its state recorded by the resumed run.
+     * Returns null if processing of the message is already done.
+     */
+    private MessageTask getResumedTask(String id) {
+        MessageTask task = new MessageTask(id);
+        Journal.Entry entry = journal.get(id);
+        if (entry == null) return task;
+        switch (entry.state) {
+            case SKIPPED:
+            case LABELLED:
+                return null;
+            case DOWNLOADED:
+                if (!options.modifyGmail) return null;
+                if (!copiesDir.resolve(id + ".eml").toFile().exists()) return task;  // Copy of the message hasn't been prepared - process the message from the start
+                break;
+        }
+        task.resumedState = entry.state;
+        task.messageId = entry.copyMessageId;
+        task.copyFile = copiesDir.resolve(id + ".eml");
+        return task;
+    }
+
+    /**
+     * Finish processing of the email message, that has been partially processed by the resumed run.
+     */
+    private void resumeMessage(MessageTask task) throws IOException, MessagingException, InterruptedException {
+        task.number = msgProcessedCount.incrementAndGet();
+        Log.detail(task.number + "/" + getMessagesCountString() + " | Resuming processing of email with ID " + task.id);
+        try { // "Fail late" check
+            if (task.msg == null) task.msg = gmailMessages.get(userId, task.id).execute();
+            insertMessageCopy(task);
+        } catch (RuntimeException exc) {
+            handleMessageError(task, exc);
+        }
+    }
+
+    private void handleMessageError(MessageTask task, RuntimeException exc) {
+        releaseMessage(task);
+        if (!options.failLate) throw exc;
+        int errorNum;
+        synchronized (ignoredExceptions) {
+            ignoredExceptions.add(exc);
+            errorNum = ignoredExceptions.size();
+        }
+        printMessageLine(task, "    ! Error processing email (ERROR #" + errorNum + ") - proceeding to the next email");
+    }
+
+    /**
+     * Fetch stage - get message metadata, decide if it has attachments to extract, and if so, get the raw message.
+     */
+    private boolean fetchMessage(MessageTask task) throws IOException, MessagingException {
+        task.number = msgProcessedCount.incrementAndGet();
+        if (task.msg == null && task.fetchRaw)
+            return fetchRawMessage(task);
+        if (task.msg == null) {  // If metadata wasn't fetched in a batch request (or that part of batch request failed), fetch it now
+            long start = System.nanoTime();
+            task.msg = gmailMessages.get(userId, task.id).execute();
+            metrics.stage("fetch.metadata").recordSince(start);
+        }
+        Message msg = task.msg;
+
+        printProcessingLine(task, getHeaderValue(msg, "Subject"), getHeaderValue(msg, "Message-ID"));
+        if (isProcessedByPreviousRun(task))
+            return false;
+
+        List<String> mimeTypes = new LinkedList<>();
+        if (msg.getPayload().getParts() != null) {  // If msg's MIME type is multipart
+            for (MessagePart part : msg.getPayload().getParts()) {
+                if (part.getFilename() != null && !part.getFilename().isEmpty())  // If part doesn't have a filename, then it's not an attachment
+                    mimeTypes.add(part.getMimeType());
+                if (part.getBody() == null)
+                    continue;
+                long size = part.getBody().getSize().longValue();
+                if (isBodyPartSatisfiesFilter(part.getFilename(), part.getMimeType(), size)) {
+                    task.attachmentToExtractCount++;
+                    task.attachmentSizes.add(size);
+                }
+            }
+        }
+        if (!isFilterSatisfied(task, mimeTypes))
+            return false;
+
+        if (!downloadAttachmentsById)
+            task.rawMsg = getRawMessage(task.id, msg.getSizeEstimate() == null ? 0 : msg.getSizeEstimate());
+        return true;
+    }
+
+    /**
+     * Fetch stage of raw fetch strategy - get the raw message right away, without getting its metadata first,
+     * and decide if it has attachments to extract based on its parsed MIME structure.
+     */
+    private boolean fetchRawMessage(MessageTask task) throws IOException, MessagingException {
+        task.rawMsg = getRawMessage(task.id, 0);
+        task.msg = task.rawMsg.getMetadata();  // Contains all fields, except the payload
+        long parseStart = System.nanoTime();
+        task.mimeMsg = rawMessageToMimeMessage(task.rawMsg);
+
+        printProcessingLine(task, Optional.ofNullable(task.mimeMsg.getSubject()).filter(v -> !v.trim().isEmpty()), Optional.ofNullable(task.mimeMsg.getHeader("Message-ID", null)));
+        if (isProcessedByPreviousRun(task)) {
+            releaseMessage(task);
+            return false;
+        }
+
+        List<String> mimeTypes = new LinkedList<>();
+        task.parts = task.mimeMsg.isMimeType("multipart/*") ? getParts(task.mimeMsg) : new BodyPart[0];  // If msg's MIME type isn't multipart, then it has no attachments
+        metrics.stage("parse").recordSince(parseStart, task.rawMsg.getContentLength());
+        for (BodyPart part : task.parts) {
+            String fileName = Utils.getPartFileName(part, options.unsafe);
+            if (fileName != null) fileName = MimeUtility.decodeText(fileName);
+            if (fileName == null || fileName.isEmpty())  // If part doesn't have a filename, then it's not an attachment
+                continue;
+            String mimeType = getMimeType(part);
+            mimeTypes.add(mimeType);
+            if (isBodyPartSatisfiesFilter(fileName, mimeType, getDecodedSize(part)))
+                task.attachmentToExtractCount++;
+        }
+        task.attachmentSizes = null;  // Sizes of attachments reported by Gmail are unknown - extracted files can't be validated against them
+        if (!isFilterSatisfied(task, mimeTypes)) {
+            releaseMessage(task);
+            return false;
+        }
+        return true;
+    }
+
+    private void printProcessingLine(MessageTask task, Optional<String> subject, Optional<String> oldMessageId) {
+        int percentProgress = (int) (100 * task.number / messageIds.getTotalCount());
+        Log.detail(task.number + "/" + getMessagesCountString() + " (" + percentProgress + "%) | Processing email " + (subject.isPresent() ? "'" + subject.get() + "'" : "with Message-ID " + oldMessageId.orElse("MISSING")));
+    }
+
+    private boolean isProcessedByPreviousRun(MessageTask task) throws IOException {
+        // Copies of emails inserted by previous runs, and original emails which attachments have been extracted, get added to
+        // mailbox history (and can match the query) - don't process them again
+        List<String> labelIds = task.msg.getLabelIds();
+        if (options.incrementalStateFile != null && labelIds != null && labelIds.stream().map(labelsById::get).anyMatch(l -> l != null && (l.getName().endsWith(PRE_LABEL_SUFFIX) || l.getName().endsWith(POST_LABEL_SUFFIX)))) {
+            printMessageLine(task, "    Email has already been processed by a previous run - proceeding to the next email");
+            journal.record(Journal.State.SKIPPED, task.id, null);
+            return true;
+        }
+        return false;
+    }
+
+    // Check if the message has attachments to extract, and update statistics used by the auto fetch strategy
+    private boolean isFilterSatisfied(MessageTask task, List<String> mimeTypes) throws IOException {
+        filterEvaluatedCount.incrementAndGet();
+        if (task.attachmentToExtractCount == 0) {
+            printMessageLine(task, "    Email doesn't contain attachments that satisfy the filter - proceeding to the next email");
+            filteredAttMimeTypes.addAll(mimeTypes);
+            journal.record(Journal.State.SKIPPED, task.id, null);
+            return false;
+        }
+        filterSatisfiedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Decide if email messages should be fetched in raw format right away (saving a metadata request per message,
+     * at the cost of downloading whole messages that turn out not to have attachments to extract).
+     */
+    private boolean isRawFetchPreferred() {
+        if (downloadAttachmentsById) return false;  // Attachments are downloaded by their IDs, taken from the metadata
+        switch (options.fetchStrategy) {
+            case RAW:
+                return true;
+            case AUTO:
+                // Fetch raw only when nearly every message has attachments to extract - so far
+                int evaluated = filterEvaluatedCount.get();
+                boolean preferRaw = evaluated >= AUTO_FETCH_MIN_SAMPLE && filterSatisfiedCount.get() >= AUTO_RAW_FETCH_MIN_HIT_RATE * evaluated;
+                if (preferRaw != rawFetchPreferred)
+                    Log.info("Fetch strategy: switching to fetching " + (preferRaw ? "raw email messages right away" : "metadata of email messages first") + " (" + (100 * filterSatisfiedCount.get() / evaluated) + "% of emails had attachments to extract so far)");
+                rawFetchPreferred = preferRaw;
+                return preferRaw;
+            default:
+                return false;
+        }
+    }
+
+    // Size of decoded content of the part - counting it requires decoding the content, so it's done only if the filter checks sizes
+    private long getDecodedSize(BodyPart part) throws IOException, MessagingException {
+        if (options.filter.minSize == 0 && options.filter.maxSize == 0) return Math.max(part.getSize(), 0);
+        try (InputStream in = part.getInputStream()) {
+            return Utils.copy(in, ByteStreams.nullOutputStream());
+        }
+    }
+
+    private String getMimeType(BodyPart part) throws MessagingException {
+        String contentType = part.getContentType();
+        return contentType.indexOf(";") > 0 ?
+                contentType.substring(0, contentType.indexOf(";")) :
+                contentType;
+    }
+
+    /**
+     * Download stage - download attachments that satisfy the filter one by one (several at the same time), using their IDs
+     * from the message metadata. Replaces parse and write stages when Gmail doesn't get modified, as then the raw message isn't needed.
+     */
+    private boolean downloadAttachments(MessageTask task) throws IOException, ParseException, InterruptedException {
+        Message msg = task.msg;
+        task.messageSubject = getHeaderValue(msg, "Subject").orElse("");
+        Optional<String> date = getHeaderValue(msg, "Date");
+        task.receiveDate = date.isPresent() ? new MailDateFormat().parse(date.get()).toInstant() : Instant.ofEpochMilli(msg.getInternalDate());
+        task.attachmentsDir = createDirForAttachments(task.id, task.receiveDate, task.messageSubject);
+
+        printMessageLine(task, "    Extracting " + task.attachmentToExtractCount + " attachment(s) to directory '" + getRelativePath(task.attachmentsDir) + "'");
+
+        // Reserve unique file names one by one, and then download attachments in parallel
+        FileSyncGroup syncGroup = options.syncAttachments ? new FileSyncGroup() : null;
+        List<AttachmentDownload> downloads = new ArrayList<>();
+        for (MessagePart part : msg.getPayload().getParts()) {
+            String unsanitizedFileName = part.getFilename();
+            if (unsanitizedFileName == null || unsanitizedFileName.isEmpty() || part.getBody() == null)  // If part doesn't have a filename, then it's not an attachment - skip it
+                continue;
+            if (!isBodyPartSatisfiesFilter(unsanitizedFileName, part.getMimeType(), part.getBody().getSize().longValue())) {
+                printMessageLine(task, "    Attachment NOT saved: " + unsanitizedFileName);
+                filteredAttMimeTypes.add(part.getMimeType());
+                continue;
+            }
+            String fileName = fileNameSanitizer.sanitizeFileName(unsanitizedFileName);
+            boolean compressed = options.compress && !Utils.isCompressedContent(part.getMimeType(), fileName);
+            Path filePath = outputSink.createFile(task.attachmentsDir, compressed ? fileName + ".gz" : fileName, 100);
+            downloads.add(new AttachmentDownload(part, filePath, attachmentDownloader.submit(() -> downloadAttachment(task.id, part.getBody(), filePath, compressed, syncGroup))));
+        }
+
+        try {
+            for (AttachmentDownload download : downloads) {
+                SavedFile saved = download.result.get();
+                printMessageLine(task, "    Attachment saved: " + download.filePath.getFileName() + deduplicate(download.filePath, saved.digests, saved.storedSize));
+                extractedAttCount.incrementAndGet();
+                totalExtractedAttSize.addAndGet(saved.size);
+                totalStoredAttSize.addAndGet(saved.storedSize);
+                extractedAttMimeTypes.add(download.part.getMimeType());
+            }
+            if (syncGroup != null) syncGroup.sync();
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            for (AttachmentDownload download : downloads)
+                download.result.cancel(true);  // No-op for finished downloads
+            if (syncGroup != null) syncGroup.close();
+            outputSink.releaseDirectory(task.attachmentsDir);
+        }
+        journal.record(Journal.State.DOWNLOADED, task.id, null);
+        return true;
+    }
+
+    // Download attachment, and commit its file right away - an archive sink can keep its archive for the file until then (see OutputSink)
+    private SavedFile downloadAttachment(String messageId, MessagePartBody body, Path filePath, boolean compressed, FileSyncGroup syncGroup) throws IOException {
+        long start = System.nanoTime();
+        SavedFile saved;
+        try {
+            long expectedSize = body.getSize() != null ? body.getSize() : -1;
+            CountingOutputStream stored = new CountingOutputStream(outputSink.openFile(filePath, expectedSize, syncGroup));
+            try (DigestUtils.DigestingOutputStream out = new DigestUtils.DigestingOutputStream(compressed ? compress(stored) : stored, getDigestAlgorithms())) {
+                if (body.getAttachmentId() == null) {
+                    out.write(body.decodeData());  // Data of small attachments is included in the message metadata
+                } else {
+                    HttpResponse response = gmailMessages.attachments().get(userId, messageId, body.getAttachmentId()).executeUnparsed();
+                    try {
+                        RawMessage.readAttachment(response.getContent(), out);
+                    } finally {
+                        response.disconnect();
+                    }
+                }
+                saved = new SavedFile(out, stored);
+            }
+            if (options.validate && (saved.storedSize != outputSink.size(filePath) || saved.size != body.getSize())) throw new RuntimeException("Incorrect exported file size");
+            outputSink.commit(filePath);
+        } catch (IOException | RuntimeException exc) {
+            discardFile(filePath, syncGroup, exc);
+            throw exc;
+        }
+        metrics.stage("attachment.download").recordSince(start, saved.size);
+        return saved;
+    }
+
+    private static class AttachmentDownload {
+        final MessagePart part;
+        final Path filePath;
+        final Future<SavedFile> result;
+
+        AttachmentDownload(MessagePart part, Path filePath, Future<SavedFile> result) {
+            this.part = part;
+            this.filePath = filePath;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Parse stage - parse raw message and create directory for its attachments.
+     */
+    private boolean parseMessage(MessageTask task) throws IOException, MessagingException, ParseException {
+        boolean parsed = task.parts != null;  // Raw fetch strategy parses the message in the fetch stage already
+        long start = System.nanoTime();
+        if (task.mimeMsg == null)
+            task.mimeMsg = rawMessageToMimeMessage(task.rawMsg);
+        task.messageId = task.mimeMsg.generateNextMessageID();
+        task.messageSubject = task.mimeMsg.getSubject() != null ? task.mimeMsg.getSubject() : "";
+        task.receiveDate = new MailDateFormat().parse(task.mimeMsg.getHeader("Date", null)).toInstant();
+        task.attachmentsDir = createDirForAttachments(task.id, task.receiveDate, task.messageSubject);
+
+        printMessageLine(task, "    Extracting " + task.attachmentToExtractCount + " attachment(s) to directory '" + getRelativePath(task.attachmentsDir) + "'");
+
+        if (!parsed) {
+            task.parts = getParts(task.mimeMsg);
+            metrics.stage("parse").recordSince(start, task.rawMsg.getContentLength());
+        }
+        return true;
+    }
+
+    /**
+     * Write stage - save attachments to files, and replace extracted attachments with descriptors.
+     */
+    private boolean writeAttachments(MessageTask task) throws IOException, MessagingException {
+        try (FileSyncGroup syncGroup = options.syncAttachments ? new FileSyncGroup() : null) {
+            saveAttachments(task, syncGroup);  // Synced before the copy of the message can be inserted
+        } finally {
+            outputSink.releaseDirectory(task.attachmentsDir);
+        }
+        if (options.modifyGmail) {
+            // Prepare copy of the message for insertion, and keep it on disk - so that it can be inserted when the run is resumed
+            setParts(task.mimeMsg, task.parts);
+            task.copyFile = copiesDir.resolve(task.id + ".eml");
+            writeMessageCopy(task.mimeMsg, task.copyFile);
+        }
+        releaseMessage(task);
+        journal.record(Journal.State.DOWNLOADED, task.id, task.messageId);  // Synced with the INSERTING record, before the copy gets inserted
+        return true;
+    }
+
+    private void saveAttachments(MessageTask task, FileSyncGroup syncGroup) throws IOException, MessagingException {
+        for (BodyPart part : task.parts) {
+            // Extract information about body part
+            String fileName = Utils.getPartFileName(part, options.unsafe);
+            if (fileName != null) fileName = MimeUtility.decodeText(fileName);
+            if (fileName == null || fileName.isEmpty()) // If part doesn't have a filename, then it's not an attachment - skip it (don't extract it)
+                continue;
+            String unsanitizedFileName = fileName;
+            fileName = fileNameSanitizer.sanitizeFileName(fileName);
+            String mimeType = getMimeType(part);
+            boolean compressed = options.compress && !Utils.isCompressedContent(mimeType, fileName);
+            Path filePath = outputSink.createFile(task.attachmentsDir, compressed ? fileName + ".gz" : fileName, 100);  // There can be multiple files with the same name, because file name can change during sanitization, or because the headers can be malformed (see Utils.getPartFileName)
+            fileName = filePath.getFileName().toString();
+            // Save part to file, calculating its digests on the way, and check if part should be extracted - the file is committed or deleted right away (see OutputSink)
+            SavedFile saved;
+            boolean extract;
+            Path archive = null;
+            try {
+                saved = saveToFile(part, filePath, compressed, syncGroup);
+                if (options.validate && saved.storedSize != outputSink.size(filePath)) throw new RuntimeException("Attachment hasn't been saved to file completely");
+                extract = isBodyPartSatisfiesFilter(unsanitizedFileName, mimeType, saved.size);  // Use unsanitized version of file name for filtering, because unsanitized version is the same as returned by MessagePart.getFilename call before
+                if (extract) {
+                    boolean removed = task.attachmentSizes == null || task.attachmentSizes.remove(saved.size);
+                    if (options.validate && !removed) throw new RuntimeException("Incorrect exported file size");
+                    archive = outputSink.commit(filePath);
+                } else {
+                    // If part should not be extracted, delete it from local filesystem
+                    if (syncGroup != null) syncGroup.discard(filePath);
+                    outputSink.delete(filePath);
+                }
+            } catch (IOException | MessagingException | RuntimeException exc) {
+                discardFile(filePath, syncGroup, exc);
+                throw exc;
+            }
+            Map<String, String> digests = saved.digests;
+            long fileSize = saved.size;
+
+            if (extract) {
+                // If part should be extracted, override its content with descriptor string (effectively deleting it from email message)
+                printMessageLine(task, "    Attachment saved: " + fileName + deduplicate(filePath, digests, saved.storedSize));
+                if (options.modifyGmail) {
+                    Map<String, String> descriptorDigests = new LinkedHashMap<>();
+                    for (String algorithm : options.digestAlgorithms)
+                        descriptorDigests.put(algorithm, digests.get(algorithm));
+                    long descriptorStart = System.nanoTime();
+                    String descriptor = buildDescriptorString(descriptorDigests, task.messageId, task.messageSubject, task.receiveDate, fileName, getRelativePath(filePath), archive != null ? getRelativePath(archive) : null, fileSize, compressed);
+                    metrics.stage("descriptor").recordSince(descriptorStart);
+                    part.setFileName(DELETED_FILE_PREFIX + fileName + ".yml");
+                    part.setContent(descriptor, "text/plain; charset=\"" + (Utils.isAllPrintableASCII(descriptor) ? "US-ASCII" : "UTF-8") + "\"");
+                }
+                extractedAttCount.incrementAndGet();
+                totalExtractedAttSize.addAndGet(fileSize);
+                totalStoredAttSize.addAndGet(saved.storedSize);
+                extractedAttMimeTypes.add(mimeType);
+            } else {
+                printMessageLine(task, "    Attachment NOT saved: " + unsanitizedFileName);  // File not extracted from the email message - so display file name as it appears in the message (not its sanitized version)
+                filteredAttMimeTypes.add(mimeType);
+            }
+        }
+        if (options.validate && task.attachmentSizes != null && !task.attachmentSizes.isEmpty()) throw new RuntimeException("One of attachments hasn't been exported properly");
+        if (syncGroup != null) syncGroup.sync();
+    }
+
+    /**
+     * Insert stage - insert copy of the message without extracted attachments, and then label the original message.
+     */
+    private boolean insertMessageCopy(MessageTask task) throws IOException, MessagingException, InterruptedException {
+        try {
+            insertMessageCopyAndLabel(task);
+        } finally {
+            releaseMessage(task);
+        }
+        msgExtractedCount.incrementAndGet();
+        return true;
+    }
+
+    private void insertMessageCopyAndLabel(MessageTask task) throws IOException, MessagingException, InterruptedException {
+        if (options.modifyGmail) {
+            // Don't modify Gmail before all messages matching queryString are listed, so that listing isn't affected by the modifications
+            messageIds.awaitComplete();
+            if (preLabel == null || postLabel == null) throw new IllegalStateException("preLabel and postLabel can't be null");
+            if (task.resumedState != Journal.State.INSERTED) {
+                // If the resumed run has been interrupted while inserting the copy, check if the copy has been inserted, to not insert it twice
+                if (task.resumedState == Journal.State.INSERTING && isMessageCopyInserted(task.messageId)) {
+                    printMessageLine(task, "    Copy of email without extracted attachments has already been inserted to Gmail");
+                } else {
+                    if (!task.copyFile.toFile().exists()) throw new RuntimeException("Copy of email " + task.id + " prepared for insertion is missing");
+                    printMessageLine(task, "    Inserting copy of email without extracted attachments to Gmail");
+                    journal.recordAndSync(Journal.State.INSERTING, task.id, task.messageId);
+                    insertMessage(task.copyFile, getCopyLabelIds(task.msg), task.msg.getThreadId());
+                }
+                journal.record(Journal.State.INSERTED, task.id, task.messageId);
+                Files.deleteIfExists(task.copyFile);
+            }
+
+            // Add label to the original message
+            if (labelBatcher != null) {
+                labelBatcher.add(task.id);
+            } else {
+                addLabelToMessage(task.msg, preLabel);
+                journal.record(Journal.State.LABELLED, task.id, null);
+            }
+        }
+    }
+
+    private List<String> getCopyLabelIds(Message msg) {
+        List<String> labelIds = msg.getLabelIds();
+        if (labelIds == null) labelIds = new LinkedList<>();
+        else {
+            labelIds = labelIds.stream()
+                    .filter(id -> {
+                        String name = labelsById.get(id).getName();
+                        return !name.endsWith(PRE_LABEL_SUFFIX) && !name.endsWith(POST_LABEL_SUFFIX);
+                    })
+                    .collect(Collectors.toList());
+        }
+        labelIds.add(postLabel.getId());
+        return labelIds;
+    }
+
+    private boolean isMessageCopyInserted(String copyMessageId) throws IOException {
+        ListMessagesResponse resp = gmailMessages.list(userId)
+                .setQ("rfc822msgid:" + copyMessageId.replaceAll("^<|>$", ""))
+                .execute();
+        return resp.getMessages() != null && !resp.getMessages().isEmpty();
+    }
+
+    private void recordLabelled(List<String> messageIds) throws IOException {
+        for (String id : messageIds)
+            journal.record(Journal.State.LABELLED, id, null);
+    }
+
+    /**
+     * Drop references to the (possibly large) content of the message, and delete its spill file, if there is one.
+     */
+    private void releaseMessage(MessageTask task) {
+        if (task.rawMsg != null) {
+            try {
+                task.rawMsg.close();
+            } catch (IOException exc) {
+                Log.warn("Failed to delete temporary file of email message " + task.id + ": " + exc);
+            }
+        }
+        task.rawMsg = null;
+        task.mimeMsg = null;
+        task.parts = null;
+    }
+
+    private Optional<String> getHeaderValue(Message msg, String name) {
+        return msg.getPayload().getHeaders().stream().filter(h -> Objects.equals(h.getName(), name) && !h.getValue().trim().isEmpty()).map(h -> h.getValue()).findFirst();
+    }
+
+    private String getMessagesCountString() {
+        return (messageIds.isComplete() ? "" : "~") + messageIds.getTotalCount();
+    }
+
+    /**
+     * Print line of output concerning the message. When messages are processed in parallel, lines concerning
+     * different messages get interleaved - so the line gets prefixed with the message number.
+     */
+    private void printMessageLine(MessageTask task, String line) {
+        if (options.parallelism > 1) line = "#" + task.number + line;
+        Log.detail(line);
+    }
+
+
     private void resetStats() {
-        msgProcessedCount = 0;
-        msgExtractedCount = 0;
-        extractedAttCount = 0;
-        totalExtractedAttSize = 0;
-        extractedAttMimeTypes = HashMultiset.create();
-        filteredAttMimeTypes = HashMultiset.create();
+        msgProcessedCount = new AtomicInteger();
+        msgExtractedCount = new AtomicInteger();
+        extractedAttCount = new AtomicInteger();
+        totalExtractedAttSize = new AtomicLong();
+        totalStoredAttSize = new AtomicLong();
+        duplicateAttCount = new AtomicInteger();
+        duplicateAttSize = new AtomicLong();
+        extractedAttMimeTypes = ConcurrentHashMultiset.create();
+        filteredAttMimeTypes = ConcurrentHashMultiset.create();
+        filterEvaluatedCount = new AtomicInteger();
+        filterSatisfiedCount = new AtomicInteger();
+        rawFetchPreferred = false;
+    }
+
+    /**
+     * Create metrics of this run, and let the rate limiter of the Gmail client (if it has one) record API calls in them.
+     */
+    private void initMetrics() {
+        metrics = new Metrics();
+        HttpRequestInitializer initializer = gmail.getRequestFactory().getInitializer();
+        if (initializer instanceof QuotaRateLimiter) ((QuotaRateLimiter) initializer).setMetrics(metrics);
+        metrics.gauge("messages_matched", () -> messageIds != null ? messageIds.getTotalCount() : 0);
+        metrics.gauge("messages_processed", msgProcessedCount::get);
+        metrics.gauge("messages_extracted", msgExtractedCount::get);
+        metrics.gauge("attachments_extracted", extractedAttCount::get);
+        metrics.gauge("attachments_extracted_bytes", totalExtractedAttSize::get);
     }
 
     private boolean isBodyPartSatisfiesFilter(String filename, String mimeType, Long size) {
-        if (filename == null || filename.isEmpty() ||
-                mimeType == null || mimeType.isEmpty() || mimeType.contains("multipart") ||
-                size == null)
-            return false;
-        return options.filter.filenameRegex.matcher(filename).matches() &&
-                options.filter.mimeTypeRegex.matcher(mimeType).matches() &&
-                (options.filter.minSize == 0 || size >= options.filter.minSize) &&
-                (options.filter.maxSize == 0 || size <= options.filter.maxSize);
+        return options.filter.matches(filename, mimeType, size);
     }
 
-    private Path createDirForAttachments(Instant receiveDate, String messageSubject) {
+    private Path createDirForAttachments(String id, Instant receiveDate, String messageSubject) throws IOException {
         final String receiveDateStr = DateTimeFormatter.ofPattern("yyyy.MM.dd HH_mm_ss").withZone(ZoneId.systemDefault())
                 .format(receiveDate);
-        final String dirName = Utils.resolvingSanitizeDirName(options.outputDir, (receiveDateStr + " " + messageSubject).trim());  // Yes - I want to (eagerly) trim(), because it's a common case that messageSubject is an empty string, and if we would keep the space at the end of the string, it would take sanitization algorithm much more time to process the string
-        Path attDir = options.outputDir.resolve(dirName);
-        int i = 2;
-
-        // Find unique name for attachments directory
-        while (attDir.toFile().exists() && i < 10)
-            attDir = attDir.resolveSibling(dirName + " " + i++);
-        if (attDir.toFile().exists()) attDir = attDir.resolveSibling(receiveDateStr);
-        if (attDir.toFile().exists()) attDir = attDir.resolveSibling(receiveDateStr + " " + globalUniqueNum++);
-        if (attDir.toFile().exists()) throw new RuntimeException("Can't find unique name for attachments directory");
-
-        // Create attachments directory
-        if (!attDir.toFile().mkdirs()) throw new RuntimeException("Can't create attachments directory '" + attDir + "'");
+        final Path parentDir = createLayoutDir(id, receiveDate);
+        final String dirName = fileNameSanitizer.sanitizeDirName((receiveDateStr + " " + messageSubject).trim());  // Yes - I want to (eagerly) trim(), because it's a common case that messageSubject is an empty string, and if we would keep the space at the end of the string, it would take sanitization algorithm much more time to process the string
+
+        // Create attachments directory with unique name - if there are many directories for messages with the same subject, received in the same second, fall back to the date alone
+        Path attDir = outputSink.createDirectory(parentDir, dirName, 9);
+        if (attDir == null) attDir = outputSink.createDirectory(parentDir, receiveDateStr, Integer.MAX_VALUE);
+        if (attDir == null) throw new RuntimeException("Can't find unique name for attachments directory");
         return attDir;
     }
 
-    private String buildDescriptorString(BodyPart part, String id, String subject, Instant receiveDate, String fileName, long fileSize) throws IOException, MessagingException {
+    private OutputSink createOutputSink() {
+        switch (options.outputFormat) {
+            case ZIP:
+                return new ZipSink(options.outputDir, options.archiveSize, options.spillThreshold, spillDir);
+            case TAR:
+                return new TarSink(options.outputDir, options.archiveSize, options.spillThreshold, spillDir);
+            default:
+                return new FileSystemSink();
+        }
+    }
+
+    /**
+     * Create (if needed) the directory of the output layout, in which directory for attachments of the email message is created.
+     */
+    private synchronized Path createLayoutDir(String id, Instant receiveDate) throws IOException {
+        Path dir;
+        switch (options.layout) {
+            case DATE:
+                String[] date = DateTimeFormatter.ofPattern("yyyy MM dd").withZone(ZoneId.systemDefault()).format(receiveDate).split(" ");
+                dir = options.outputDir.resolve(date[0]).resolve(date[1]).resolve(date[2]);
+                break;
+            case HASH:
+                String hash = DigestUtils.md5Hex(id);  // Gmail IDs of emails received around the same time share a prefix - hash them to spread emails evenly
+                dir = options.outputDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+                break;
+            default:
+                return options.outputDir;
+        }
+        if (layoutDirs.add(dir)) {
+            outputSink.createDirectories(dir);
+            if (options.syncAttachments) {
+                // Directories of the layout may be new - sync their entries, up to the output directory
+                for (Path syncedDir = dir; syncedDir.startsWith(options.outputDir); syncedDir = syncedDir.getParent())
+                    FileSyncGroup.syncDirectory(syncedDir);
+            }
+        }
+        return dir;
+    }
+
+    // Path relative to the output directory, with '/' as separator on every platform
+    private String getRelativePath(Path path) {
+        return options.outputDir.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private String buildDescriptorString(Map<String, String> digests, String id, String subject, Instant receiveDate, String fileName, String relativePath, String archivePath, long fileSize, boolean compressed) {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss O").withZone(ZoneId.systemDefault());
+        StringBuilder digestLines = new StringBuilder();
+        int labelWidth = digests.keySet().stream().mapToInt(a -> a.replace("-", "").length()).max().orElse(0) + 2;
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            String label = digest.getKey().replace("-", "") + ":";  // E.g. "SHA1:" for SHA-1 algorithm
+            digestLines.append("    ").append(String.format("%-" + labelWidth + "s", label)).append(digest.getValue()).append("\r\n");
+        }
         return "#\r\n" +
                 "# The attachment has been deleted from this email message.\r\n" +
                 "#\r\n" +
@@ -289,22 +1005,150 @@ public class GmailAttachmentsExtractor {
                 "    Date received: " + formatter.format(receiveDate) + "\r\n" +
                 "Attachment file:\r\n" +
                 "    Name: \"" + Utils.addJavaEscapeSequences(fileName) + "\"\r\n" +
+                "    Path: \"" + Utils.addJavaEscapeSequences(relativePath) + "\"\r\n" +
+                (archivePath != null ? "    Archive: \"" + Utils.addJavaEscapeSequences(archivePath) + "\"\r\n" : "") +
                 "    Size in bytes: " + fileSize + "\r\n" +
-                "    SHA1: " + DigestUtils.sha1Hex(part.getInputStream()) + "\r\n" +
-                "    MD5:  " + DigestUtils.md5Hex(part.getInputStream()) + "\r\n";
+                (compressed ? "    Compression: gzip\r\n" : "") +
+                digestLines;
+    }
+
+
+    /**
+     * Get algorithms of digests that need to be calculated for every saved attachment - the ones included in the
+     * descriptor, and the one used by the deduplicating store.
+     */
+    private String[] getDigestAlgorithms() {
+        Set<String> algorithms = new LinkedHashSet<>();
+        if (options.modifyGmail) algorithms.addAll(Arrays.asList(options.digestAlgorithms));
+        if (blobStore != null) algorithms.add(BlobStore.HASH_ALGORITHM);
+        return algorithms.toArray(new String[0]);
+    }
+
+    /**
+     * Move saved attachment file to the deduplicating store (if enabled), and return a note to display about it.
+     */
+    private String deduplicate(Path filePath, Map<String, String> digests, long fileSize) throws IOException {
+        if (blobStore == null || !blobStore.add(filePath, digests.get(BlobStore.HASH_ALGORITHM))) return "";
+        duplicateAttCount.incrementAndGet();
+        duplicateAttSize.addAndGet(fileSize);
+        return " (duplicate)";
+    }
+
+    /**
+     * Save part to file, calculating digests (needed for descriptor and deduplication) in the same pass.
+     */
+    private SavedFile saveToFile(BodyPart part, Path filePath, boolean compressed, FileSyncGroup syncGroup) throws IOException, MessagingException {
+        long start = System.nanoTime();
+        CountingOutputStream stored = new CountingOutputStream(outputSink.openFile(filePath, Utils.estimateDecodedSize(part), syncGroup));
+        DigestUtils.DigestingOutputStream out = new DigestUtils.DigestingOutputStream(compressed ? compress(stored) : stored, getDigestAlgorithms());
+        try (InputStream in = part.getInputStream(); OutputStream closedOut = out) {
+            Utils.copy(in, closedOut);
+        }
+        metrics.stage("attachment.save").recordSince(start, out.getByteCount());
+        return new SavedFile(out, stored);
+    }
+
+    // Drop the file after saving it has failed - errors of dropping it are added to the failure
+    private void discardFile(Path filePath, FileSyncGroup syncGroup, Exception failure) {
+        try {
+            if (syncGroup != null) syncGroup.discard(filePath);
+            outputSink.delete(filePath);
+        } catch (IOException | RuntimeException exc) {
+            failure.addSuppressed(exc);
+        }
+    }
+
+    // Compress the stream on the compressor threads - up to two blocks per thread can wait for compression, so the threads always have work
+    private OutputStream compress(OutputStream out) throws IOException {
+        try {
+            return new ParallelGzipOutputStream(out, compressor, Deflater.DEFAULT_COMPRESSION, 2 * options.compressionThreads);
+        } catch (IOException | RuntimeException exc) {
+            out.close();
+            throw exc;
+        }
+    }
+
+    // Attachment saved to file - digests and size are of the original content, storedSize is the size of the file (e.g. after compression)
+    private static class SavedFile {
+        final Map<String, String> digests;
+        final long size;
+        final long storedSize;
+
+        SavedFile(DigestUtils.DigestingOutputStream out, CountingOutputStream stored) {
+            this.digests = out.getDigestsHex();
+            this.size = out.getByteCount();
+            this.storedSize = stored.getCount();
+        }
+    }
+
+    /**
+     * Get metadata of email messages using batch requests, and store it in the tasks.
+     * If getting metadata of a message fails, then the task's metadata is left null, so that it can be fetched
+     * (and its failure handled) separately, when the message gets processed.
+     */
+    private void getMessagesMetadata(List<MessageTask> tasks) throws IOException {
+        for (int from = 0; from < tasks.size(); from += options.metadataBatchSize) {
+            BatchRequest batch = newBatchRequest();
+            for (MessageTask task : tasks.subList(from, Math.min(from + options.metadataBatchSize, tasks.size()))) {
+                gmailMessages.get(userId, task.id).queue(batch, new JsonBatchCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message msg, HttpHeaders responseHeaders) {
+                        task.msg = msg;
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                        task.msg = null;
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            try {
+                batch.execute();
+            } catch (IOException exc) {
+                // Metadata of messages that hasn't been fetched in the batch, will be fetched separately
+            }
+            metrics.stage("metadata.batch").recordSince(start);
+        }
     }
 
+    private BatchRequest newBatchRequest() {
+        return GmailInit.newBatchRequest(gmail);
+    }
 
-    private void saveToFile(BodyPart part, Path filePath) throws IOException, MessagingException {
-        Utils.copyInputStreamToFile(part.getInputStream(), filePath.toFile());
+    /**
+     * Get email messages matching queryString, that has been added since the previous incremental run, as a single page.
+     * Returns null if the previous run is unknown or too old - then all email messages matching queryString have to be listed.
+     */
+    private ListMessagesResponse getNewMessagesPage() throws IOException {
+        BigInteger lastHistoryId = IncrementalSync.readHistoryId(options.incrementalStateFile);
+        if (lastHistoryId == null) {
+            Log.info("Incremental mode: no previous run recorded in '" + options.incrementalStateFile + "' - processing all email messages matching the query");
+            return null;
+        }
+        // Messages with output labels have been processed already - i.e. message copies inserted by the previous run
+        Set<String> outputLabelIds = labelsById.values().stream()
+                .filter(l -> l.getName().endsWith(PRE_LABEL_SUFFIX) || l.getName().endsWith(POST_LABEL_SUFFIX))
+                .map(Label::getId)
+                .collect(Collectors.toSet());
+        List<String> ids = new IncrementalSync(gmail, userId, this::newBatchRequest, options.metadataBatchSize).listNewMessageIds(lastHistoryId, options.queryString, outputLabelIds);
+        if (ids == null) {
+            Log.info("Incremental mode: mailbox history since the previous run is no longer available - processing all email messages matching the query");
+            return null;
+        }
+        List<Message> msgs = ids.stream().map(id -> new Message().setId(id)).collect(Collectors.toList());
+        return new ListMessagesResponse().setMessages(msgs).setResultSizeEstimate((long) msgs.size());
     }
 
     private ListMessagesResponse getGmailMessagesPage(String pageToken) throws IOException {
-        return gmailMessages.list(userId)
+        long start = System.nanoTime();
+        ListMessagesResponse page = gmailMessages.list(userId)
                 .setQ(options.queryString)
                 .setPageToken(pageToken)
-                .setMaxResults(500L)
+                .setMaxResults(MESSAGES_PAGE_SIZE)
                 .execute();
+        metrics.stage("list").recordSince(start);
+        return page;
     }
 
     private BodyPart[] getParts(MimeMessage mimeMessage) throws IOException, MessagingException {
@@ -352,40 +1196,124 @@ public class GmailAttachmentsExtractor {
     }
 
     private void addLabelToMessage(Message message, Label label) throws IOException {
+        long start = System.nanoTime();
         ModifyMessageRequest modReq = new ModifyMessageRequest().setAddLabelIds(Collections.singletonList(label.getId()));
         gmailMessages.modify(userId, message.getId(), modReq).execute();
+        metrics.stage("label").recordSince(start);
+    }
+
+    private void flushPendingLabels() throws IOException {
+        try {
+            labelBatcher.flush();
+        } catch (IOException | RuntimeException exc) {
+            Log.error("Failed to add label '" + preLabel.getName() + "' to the following email messages, which copies have already been inserted to Gmail. Add the label to those email messages manually. Message IDs: " + String.join(", ", labelBatcher.getPendingIds()));
+            throw exc;
+        }
+    }
+
+    private void tryFlushPendingLabels() {
+        try {
+            flushPendingLabels();
+        } catch (IOException | RuntimeException exc) {
+            Log.error(Throwables.getStackTraceAsString(exc));
+        }
+    }
+
+    private void flushPendingLabelsOnShutdown() {
+        tryFlushPendingLabels();
+        // Print the buffered lines (e.g. IDs of messages to label manually) now - the log writer thread is a daemon, so it can be halted before it prints them
+        try {
+            Log.stop();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeMessageCopy(MimeMessage mimeMessage, Path file) throws IOException, MessagingException {
+        long start = System.nanoTime();
+        try (FileOutputStream fileOut = new FileOutputStream(file.toFile())) {
+            OutputStream out = new BufferedOutputStream(fileOut, Utils.COPY_BUFFER_SIZE);
+            mimeMessage.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();  // Copy must be on disk before it's recorded in the journal
+        }
+        metrics.stage("copy.write").recordSince(start, Files.size(file));
     }
 
-    private Message insertMessage(MimeMessage mimeMessage, List<String> labelIds, String threadId) throws IOException, MessagingException {
+    private Message insertMessage(Path messageFile, List<String> labelIds, String threadId) throws IOException {
         // Create Message instance containing email message metadata
         Message metadata = new Message()
                 .setLabelIds(labelIds)
                 .setThreadId(threadId);
 
-        // Create byte array containing email message data (in RFC 2822 format)
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        mimeMessage.writeTo(baos);
-        ByteArrayContent rawMessageBytes = new ByteArrayContent("message/rfc822", baos.toByteArray());
-
-        return gmailMessages.insert(userId, metadata, rawMessageBytes)
-                .setInternalDateSource("dateHeader")  // The GMail internal message time is based on the Date header in the email, when valid.
-                .execute();
+        // Upload the message (in RFC 2822 format) from file in chunks, using resumable upload - chunk that fails because of a network or server error is resumed (see UploadRetryInitializer)
+        Gmail.Users.Messages.Insert insert = gmailMessages.insert(userId, metadata, new FileContent("message/rfc822", messageFile.toFile()))
+                .setInternalDateSource("dateHeader");  // The GMail internal message time is based on the Date header in the email, when valid.
+        insert.getMediaHttpUploader()
+                .setDirectUploadEnabled(false)
+                .setChunkSize(options.uploadChunkSize);
+        long start = System.nanoTime();
+        Message inserted = insert.execute();
+        metrics.stage("insert").recordSince(start, Files.size(messageFile));
+        return inserted;
     }
 
 
-    private Message getRawMessage(String messageId) throws IOException {
-        return gmailMessages.get(userId, messageId)
+    private RawMessage getRawMessage(String messageId, int sizeHint) throws IOException {
+        long start = System.nanoTime();
+        RawMessage message = getRawMessageContent(messageId, sizeHint);
+        metrics.stage("fetch.raw").recordSince(start, message.getContentLength());
+        return message;
+    }
+
+    private RawMessage getRawMessageContent(String messageId, int sizeHint) throws IOException {
+        HttpResponse response = gmailMessages.get(userId, messageId)
                 .setFormat("raw")
-                .execute();
+                .executeUnparsed();
+        try {
+            // Messages larger than the threshold are decoded to a temporary file, and later read from it lazily
+            if (options.spillThreshold > 0 && sizeHint > options.spillThreshold)
+                return RawMessage.read(response.getContent(), spillDir.resolve(messageId + ".eml"));
+            if (options.spillThreshold > 0 && sizeHint == 0)  // Size unknown - move the message to a temporary file once it exceeds the threshold
+                return RawMessage.read(response.getContent(), options.spillThreshold, spillDir.resolve(messageId + ".eml"));
+            return RawMessage.read(response.getContent(), sizeHint);
+        } finally {
+            response.disconnect();
+        }
     }
 
-    private AccessibleMimeMessage rawMessageToMimeMessage(Message message) throws MessagingException {
+    private AccessibleMimeMessage rawMessageToMimeMessage(RawMessage message) throws IOException, MessagingException {
         Session session = Session.getDefaultInstance(new Properties(), null);
-        return new AccessibleMimeMessage(session, new ByteArrayInputStream(Base64.decodeBase64(message.getRaw())));
+        return message.toMimeMessage(session);
+    }
+
+    /**
+     * Start printing progress of the run (with current throughput and ETA) every progressIntervalSeconds.
+     */
+    private void startProgress() {
+        long startNanos = System.nanoTime();
+        int startCount = msgProcessedCount.get();
+        long[] last = {startNanos, startCount, totalExtractedAttSize.get()};  // Time, processed messages and extracted bytes at the previous report
+        Log.startProgress(() -> {
+            long now = System.nanoTime();
+            int processed = msgProcessedCount.get();
+            long extractedBytes = totalExtractedAttSize.get();
+            double intervalSeconds = (now - last[0]) / 1e9;
+            double msgsPerSecond = (processed - last[1]) / intervalSeconds;
+            double bytesPerSecond = (extractedBytes - last[2]) / intervalSeconds;
+            double avgMsgsPerSecond = (processed - startCount) / ((now - startNanos) / 1e9);
+            long remaining = messageIds.getTotalCount() - processed;
+            last[0] = now;
+            last[1] = processed;
+            last[2] = extractedBytes;
+            return "Progress: " + processed + "/" + getMessagesCountString() + " (" + (100 * processed / Math.max(1, messageIds.getTotalCount())) + "%)" +
+                    " | " + String.format("%.1f", msgsPerSecond) + " emails/s, " + Utils.humanReadableByteCount((long) bytesPerSecond) + "/s extracted" +
+                    " | ETA " + (avgMsgsPerSecond > 0 ? Utils.humanReadableDuration((long) (remaining / avgMsgsPerSecond)) : "unknown");
+        }, options.progressIntervalSeconds);
     }
 
     private void printStartMessage() {
-        System.out.println(
+        Log.info(
                 "\n" +
                         "Starting " + AppInfo.NAME + " v" + AppInfo.VERSION + "\n" +
                         "Parameters:\n" +
@@ -403,37 +1331,54 @@ public class GmailAttachmentsExtractor {
         if (options.filter.maxSize > 0) sizeStrs.add("max " + String.format("%,d", options.filter.maxSize) + " bytes");
         if (!sizeStrs.isEmpty()) sb.append("        File size: ").append(String.join(", ", sizeStrs));
         if (sb.length() > initLen)
-            System.out.println(sb.toString());
-        if (!options.validate) System.out.println("VALIDATIONS OFF!");
-        if (options.failLate) System.out.println("!! FAIL LATE MODE ON !!");
-        if (options.unsafe) System.out.println("!! UNSAFE MODE ON !!");
-        System.out.println();
+            Log.info(sb.toString());
+        if (options.parallelism > 1) Log.info("    Parallelism: " + options.parallelism);
+        if (options.fetchStrategy != Options.FetchStrategy.METADATA) Log.info("    Fetch strategy: " + options.fetchStrategy.name().toLowerCase());
+        if (options.quotaUnitsPerSecond != QuotaRateLimiter.GMAIL_USER_UNITS_PER_SECOND) Log.info("    Quota rate: " + options.quotaUnitsPerSecond + " units/s");
+        if (!options.validate) Log.info("VALIDATIONS OFF!");
+        if (options.failLate) Log.info("!! FAIL LATE MODE ON !!");
+        if (options.unsafe) Log.info("!! UNSAFE MODE ON !!");
+        Log.info("");
     }
 
     private void printSummary() {
-        System.out.println(
+        Log.info(
                 "\n=== SUMMARY ===\n" +
                         "Processed " + msgProcessedCount + " email(s)\n" +
                         "Extracted attachments from " + msgExtractedCount + " email(s)\n" +
                         "Extracted " + extractedAttCount + " attachment(s)\n" +
-                        "Total extracted attachments size: " + Utils.humanReadableByteCount(totalExtractedAttSize) + "\n" +
+                        "Total extracted attachments size: " + Utils.humanReadableByteCount(totalExtractedAttSize.get()) + "\n" +
+                        (options.compress ? "Total size of saved (compressed) attachments: " + Utils.humanReadableByteCount(totalStoredAttSize.get()) + "\n" : "") +
+                        (blobStore != null ? "Duplicate attachments: " + duplicateAttCount + " (" + Utils.humanReadableByteCount(duplicateAttSize.get()) + " not stored again)\n" : "") +
                         "Extracted attachments types: " + extractedAttMimeTypes
         );
         if (!filteredAttMimeTypes.isEmpty())
-            System.out.println("NOT extracted (filtered) attachments types: " + filteredAttMimeTypes);
+            Log.info("NOT extracted (filtered) attachments types: " + filteredAttMimeTypes);
         if (options.noModifyGmail)
-            System.out.println("GMAIL DATA NOT MODIFIED");
-        System.out.println();
+            Log.info("GMAIL DATA NOT MODIFIED");
+        Log.info("");
+    }
+
+    private void printMetrics() {
+        StringBuilder sb = new StringBuilder("=== TIME PER STAGE ===\n");
+        for (Map.Entry<String, Metrics.Timer> entry : metrics.getStages().entrySet()) {
+            Metrics.Timer timer = entry.getValue();
+            sb.append(String.format("%-20s %6d x  total %9.2f s  p50 %8.3f s  p95 %8.3f s  p99 %8.3f s", entry.getKey(), timer.getCount(), timer.getTotalSeconds(), timer.getQuantile(0.5), timer.getQuantile(0.95), timer.getQuantile(0.99)));
+            if (timer.getBytes() > 0 && timer.getTotalSeconds() > 0) sb.append("  ").append(Utils.humanReadableByteCount(timer.getBytes())).append(" (").append(Utils.humanReadableByteCount((long) (timer.getBytes() / timer.getTotalSeconds()))).append("/s)");
+            sb.append("\n");
+        }
+        sb.append("Metrics saved to: ").append(Stream.of(options.metricsJsonFile, options.metricsPrometheusFile).filter(Objects::nonNull).map(f -> "'" + f + "'").collect(Collectors.joining(", "))).append("\n");
+        Log.info(sb.toString());
     }
 
     private void printExceptions(List<RuntimeException> exceptions) {
         if (exceptions.isEmpty()) return;
         int i = 1;
         for (Exception exc : exceptions) {
-            System.out.println("\n== ERROR #" + i);
-            exc.printStackTrace(System.out);
+            Log.error("\n== ERROR #" + i);
+            Log.error(Throwables.getStackTraceAsString(exc));
             i++;
         }
-        System.out.println("\n" + (i - 1) + " error(s) in total.");
+        Log.error("\n" + (i - 1) + " error(s) in total.");
     }
 }
\ No newline at end of file
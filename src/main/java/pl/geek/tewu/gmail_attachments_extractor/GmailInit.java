@@ -5,7 +5,9 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -22,14 +24,22 @@ public class GmailInit {
     public static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
 
-    public static Gmail getGmail(String appName, Path credentialsFilePath, List<String> scopes, Path tokensDirPath) throws IOException, GeneralSecurityException {
+    public static Gmail getGmail(String appName, Path credentialsFilePath, List<String> scopes, Path tokensDirPath, int quotaUnitsPerSecond) throws IOException, GeneralSecurityException {
         final NetHttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-        return new Gmail.Builder(httpTransport, JSON_FACTORY, getCredentials(credentialsFilePath, scopes, tokensDirPath, httpTransport))
+        Credential credential = getCredentials(credentialsFilePath, scopes, tokensDirPath, httpTransport);
+        return new Gmail.Builder(httpTransport, JSON_FACTORY, new QuotaRateLimiter(new UploadRetryInitializer(credential), quotaUnitsPerSecond))
                 .setApplicationName(appName)
                 .build();
     }
 
 
+    public static BatchRequest newBatchRequest(Gmail gmail) {
+        // The global batch endpoint (used by default) is discontinued - use the Gmail API specific one.
+        // Initialize batch request like every other request, so that it can be retried when rate limit is exceeded
+        return gmail.batch(gmail.getRequestFactory().getInitializer()).setBatchUrl(new GenericUrl(gmail.getRootUrl() + GmailAttachmentsExtractor.BATCH_PATH));
+    }
+
+
     private static Credential getCredentials(Path credentialsFilePath, List<String> scopes, Path tokensDirPath, NetHttpTransport httpTransport) throws IOException {
         // Load client secrets.
         File credentialsFile = credentialsFilePath.toFile();
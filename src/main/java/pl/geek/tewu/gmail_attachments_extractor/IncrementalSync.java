@@ -0,0 +1,163 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Supplier;
+
+
+/**
+ * IncrementalSync finds email messages matching the query, that has been added to the mailbox since the previous run,
+ * using Gmail history (users.history.list) - so that the cost of a run depends on the amount of new mail, not on the size
+ * of the mailbox. Mailbox history ID from the start of the run is saved in a state file, when the run succeeds.
+ */
+public class IncrementalSync {
+    public static final long HISTORY_PAGE_SIZE = 500;
+    public static final long MESSAGES_PAGE_SIZE = 500;
+
+    private final Gmail.Users gmailUsers;
+    private final String userId;
+    private final Supplier<BatchRequest> batchRequestFactory;
+    private final int batchSize;
+
+
+    public IncrementalSync(Gmail gmail, String userId, Supplier<BatchRequest> batchRequestFactory, int batchSize) {
+        this.gmailUsers = gmail.users();
+        this.userId = userId;
+        this.batchRequestFactory = batchRequestFactory;
+        this.batchSize = batchSize;
+    }
+
+
+    public BigInteger getCurrentHistoryId() throws IOException {
+        return gmailUsers.getProfile(userId).execute().getHistoryId();
+    }
+
+    /**
+     * Get IDs of email messages matching the query, that has been added to the mailbox after the given history ID,
+     * newest first (like messages.list returns them). Added messages with any of the skipped labels (e.g. message copies
+     * inserted by the previous run) are left out.
+     * Returns null if the history ID is too old (Gmail keeps history only for a limited time) - a full scan is needed then.
+     */
+    public List<String> listNewMessageIds(BigInteger startHistoryId, String query, Set<String> skippedLabelIds) throws IOException {
+        Set<String> addedIds = listAddedMessageIds(startHistoryId);
+        if (addedIds == null) return null;
+        if (addedIds.isEmpty()) return Collections.emptyList();
+
+        // History doesn't tell which messages match the query - so list messages matching the query, but only in the
+        // time range of the added messages, and pick the added ones. Message copies inserted by the previous run have
+        // internal dates of the original messages, so they must not stretch the time range.
+        Long oldestAddedMillis = removeSkippedAndGetOldestInternalDate(addedIds, skippedLabelIds);
+        if (oldestAddedMillis == null) return Collections.emptyList();  // All added messages have been skipped, or deleted since
+        String rangeQuery = "(" + query + ") after:" + (oldestAddedMillis / 1000 - 1);
+        List<String> newIds = new ArrayList<>();
+        String pageToken = null;
+        do {
+            ListMessagesResponse page = gmailUsers.messages().list(userId)
+                    .setQ(rangeQuery)
+                    .setPageToken(pageToken)
+                    .setMaxResults(MESSAGES_PAGE_SIZE)
+                    .execute();
+            if (page.getMessages() != null)
+                for (Message msg : page.getMessages())
+                    if (addedIds.contains(msg.getId())) newIds.add(msg.getId());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return newIds;
+    }
+
+    public static BigInteger readHistoryId(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        String content = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+        return content.isEmpty() ? null : new BigInteger(content);
+    }
+
+    public static void saveHistoryId(Path file, BigInteger historyId) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmpFile, (historyId + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    private Set<String> listAddedMessageIds(BigInteger startHistoryId) throws IOException {
+        Set<String> ids = new LinkedHashSet<>();
+        String pageToken = null;
+        try {
+            do {
+                ListHistoryResponse page = gmailUsers.history().list(userId)
+                        .setStartHistoryId(startHistoryId)
+                        .setHistoryTypes(Collections.singletonList("messageAdded"))
+                        .setPageToken(pageToken)
+                        .setMaxResults(HISTORY_PAGE_SIZE)
+                        .execute();
+                if (page.getHistory() != null)
+                    for (History history : page.getHistory())
+                        if (history.getMessagesAdded() != null)
+                            for (HistoryMessageAdded added : history.getMessagesAdded())
+                                ids.add(added.getMessage().getId());
+                pageToken = page.getNextPageToken();
+            } while (pageToken != null);
+        } catch (GoogleJsonResponseException exc) {
+            if (exc.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) return null;  // History ID is out of date
+            throw exc;
+        }
+        return ids;
+    }
+
+    // Remove messages that have any of the skipped labels, or don't exist anymore, from ids, and get the oldest internal
+    // date of the remaining messages - or null if no messages remain. Messages that couldn't be fetched in a batch for
+    // other reasons (e.g. rate limits) are fetched one by one - if that fails too, the run fails, so that they aren't missed.
+    private Long removeSkippedAndGetOldestInternalDate(Set<String> ids, Set<String> skippedLabelIds) throws IOException {
+        final long[] oldest = {Long.MAX_VALUE};
+        Set<String> removedIds = new HashSet<>();
+        List<String> failedIds = new ArrayList<>();
+        List<String> idsList = new ArrayList<>(ids);
+        for (int from = 0; from < idsList.size(); from += batchSize) {
+            BatchRequest batch = batchRequestFactory.get();
+            for (String id : idsList.subList(from, Math.min(from + batchSize, idsList.size()))) {
+                gmailUsers.messages().get(userId, id).setFormat("minimal").queue(batch, new JsonBatchCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message msg, HttpHeaders responseHeaders) {
+                        if (msg.getLabelIds() != null && !Collections.disjoint(msg.getLabelIds(), skippedLabelIds)) removedIds.add(id);
+                        else if (msg.getInternalDate() != null) oldest[0] = Math.min(oldest[0], msg.getInternalDate());
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                        if (error.getCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) removedIds.add(id);  // Message has been deleted since it was added - it doesn't need to be processed
+                        else failedIds.add(id);
+                    }
+                });
+            }
+            batch.execute();
+        }
+        for (String id : failedIds) {
+            Message msg;
+            try {
+                msg = gmailUsers.messages().get(userId, id).setFormat("minimal").execute();
+            } catch (GoogleJsonResponseException exc) {
+                if (exc.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) throw exc;
+                removedIds.add(id);
+                continue;
+            }
+            if (msg.getLabelIds() != null && !Collections.disjoint(msg.getLabelIds(), skippedLabelIds)) removedIds.add(id);
+            else if (msg.getInternalDate() != null) oldest[0] = Math.min(oldest[0], msg.getInternalDate());
+        }
+        ids.removeAll(removedIds);
+        return oldest[0] == Long.MAX_VALUE ? null : oldest[0];
+    }
+}
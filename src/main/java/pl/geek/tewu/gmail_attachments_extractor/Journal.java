@@ -0,0 +1,127 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Journal is an append-only record of processing state of email messages, that lets an interrupted run be resumed.
+ * Every line of the journal file is: STATE MESSAGE_ID [COPY_MESSAGE_ID] - where COPY_MESSAGE_ID is the Message-ID header
+ * of the email message copy, that is inserted to Gmail.
+ * <p>
+ * Records are synced to disk in batches (every SYNC_BATCH_SIZE records or SYNC_INTERVAL_MILLIS), so a crash can lose
+ * the last few records - which is fine, as long as redoing the recorded steps is harmless (e.g. downloading attachments
+ * of the last batch of messages again). Records of steps that can't be safely redone (i.e. inserting a message copy)
+ * must be synced before the step is performed, with recordAndSync - which syncs all the records before them as well.
+ */
+public class Journal implements Closeable {
+    public static final int SYNC_BATCH_SIZE = 100;
+    public static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    public enum State {
+        SKIPPED,     // Message doesn't have attachments to extract - processing is done
+        DOWNLOADED,  // Attachments are saved, and (when Gmail gets modified) message copy is prepared for insertion
+        INSERTING,   // Message copy is about to be inserted - it may or may not have been inserted
+        INSERTED,    // Message copy is inserted
+        LABELLED     // Original message is labelled - processing is done
+    }
+
+    public static class Entry {
+        public final State state;
+        public final String copyMessageId;
+
+        Entry(State state, String copyMessageId) {
+            this.state = state;
+            this.copyMessageId = copyMessageId;
+        }
+    }
+
+
+    private final FileChannel channel;
+    private final Writer writer;
+    private final Map<String, Entry> entries = new HashMap<>();  // Last recorded entry of every message
+    private int unsyncedCount = 0;
+    private long lastSyncMillis = System.currentTimeMillis();
+
+
+    /**
+     * Open the journal file, creating it if it doesn't exist, and load entries already recorded in it.
+     */
+    public Journal(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+
+
+    public synchronized Entry get(String messageId) {
+        return entries.get(messageId);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void record(State state, String messageId, String copyMessageId) throws IOException {
+        writer.write(state + " " + messageId + (copyMessageId != null ? " " + copyMessageId : "") + "\n");
+        entries.put(messageId, new Entry(state, copyMessageId));
+        unsyncedCount++;
+        if (unsyncedCount >= SYNC_BATCH_SIZE || System.currentTimeMillis() - lastSyncMillis >= SYNC_INTERVAL_MILLIS)
+            sync();
+    }
+
+    public synchronized void recordAndSync(State state, String messageId, String copyMessageId) throws IOException {
+        record(state, messageId, copyMessageId);
+        sync();
+    }
+
+    public synchronized void sync() throws IOException {
+        writer.flush();
+        channel.force(false);
+        unsyncedCount = 0;
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE));
+        Utils.copy(Channels.newInputStream(channel), content);
+        byte[] bytes = content.toByteArray();
+
+        // Drop incomplete last line (if the previous run crashed while writing it), so that new records start in a new line
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') end--;
+        if (end < bytes.length) channel.truncate(end);
+        channel.position(end);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes, 0, end), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 2) continue;
+            State state;
+            try {
+                state = State.valueOf(fields[0]);
+            } catch (IllegalArgumentException exc) {
+                continue;
+            }
+            entries.put(fields[1], new Entry(state, fields.length > 2 ? fields[2] : null));
+        }
+    }
+}
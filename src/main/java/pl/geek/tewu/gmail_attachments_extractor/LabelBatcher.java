@@ -0,0 +1,64 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.BatchModifyMessagesRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * LabelBatcher collects IDs of email messages that should get a label, and adds the label to them in bulk,
+ * using messages.batchModify requests (which are much cheaper than modifying messages one by one).
+ * Message IDs stay pending until the request adding the label to them succeeds.
+ */
+public class LabelBatcher {
+    public static final int MAX_BATCH_SIZE = 1000;  // Max number of message IDs accepted by messages.batchModify
+
+    private final Gmail.Users.Messages gmailMessages;
+    private final String userId;
+    private final String labelId;
+    private final Listener listener;
+    private final List<String> pendingIds = new ArrayList<>();
+
+
+    public interface Listener {
+        /**
+         * Called after the label has been added to the messages.
+         */
+        void labelled(List<String> messageIds) throws IOException;
+    }
+
+
+    public LabelBatcher(Gmail.Users.Messages gmailMessages, String userId, String labelId, Listener listener) {
+        this.gmailMessages = gmailMessages;
+        this.userId = userId;
+        this.labelId = labelId;
+        this.listener = listener;
+    }
+
+    public synchronized void add(String messageId) throws IOException {
+        pendingIds.add(messageId);
+        if (pendingIds.size() >= MAX_BATCH_SIZE)
+            flush();
+    }
+
+    public synchronized void flush() throws IOException {
+        while (!pendingIds.isEmpty()) {
+            List<String> batchIds = pendingIds.subList(0, Math.min(MAX_BATCH_SIZE, pendingIds.size()));
+            List<String> labelledIds = new ArrayList<>(batchIds);
+            BatchModifyMessagesRequest modReq = new BatchModifyMessagesRequest()
+                    .setIds(labelledIds)
+                    .setAddLabelIds(Collections.singletonList(labelId));
+            gmailMessages.batchModify(userId, modReq).execute();
+            batchIds.clear();
+            if (listener != null) listener.labelled(labelledIds);
+        }
+    }
+
+    public synchronized List<String> getPendingIds() {
+        return new ArrayList<>(pendingIds);
+    }
+}
@@ -0,0 +1,251 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.client.json.GenericJson;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+
+/**
+ * Log is the output of the program, with levels - ERROR and WARN lines go to stderr, all other lines to stdout.
+ * <p>
+ * By default lines are printed synchronously. After start(), they are put into a bounded buffer, and printed
+ * by a background thread, so that threads processing email messages never block on (possibly slow) stdout.
+ * When the buffer is full, INFO and lower level lines are dropped (and the number of dropped lines is printed
+ * later) - ERROR and WARN lines are never dropped. Lines can be printed as text, or as JSON objects (one per line).
+ * <p>
+ * While started, Log can also print a progress line every given number of seconds.
+ */
+public class Log {
+    public static final int BUFFER_CAPACITY = 8192;
+    public static final int MAX_WRITE_BATCH_SIZE = 256;  // Lines are printed in batches, to not flush the stream after every line
+
+    public enum Level {
+        ERROR,
+        WARN,
+        INFO,
+        DETAIL,  // Lines about processing of a single email message
+        DEBUG
+    }
+
+    public enum Format {
+        TEXT, JSON
+    }
+
+    private static final Object lock = new Object();
+    private static Level level = Level.DETAIL;
+    private static Format format = Format.TEXT;
+    private static ArrayDeque<Record> buffer;  // null if not started - then lines are printed synchronously
+    private static long droppedCount;
+    private static boolean printing;  // Writer thread is printing lines taken from the buffer
+    private static Thread writerThread;
+    private static Thread progressThread;
+    private static PrintStream out;
+    private static PrintStream err;
+
+
+    private static class Record {
+        final long timeMillis = System.currentTimeMillis();
+        final String threadName = Thread.currentThread().getName();
+        final Level level;
+        final String text;
+
+        Record(Level level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+
+    public static void error(String text) {
+        log(Level.ERROR, text);
+    }
+
+    public static void warn(String text) {
+        log(Level.WARN, text);
+    }
+
+    public static void info(String text) {
+        log(Level.INFO, text);
+    }
+
+    public static void detail(String text) {
+        log(Level.DETAIL, text);
+    }
+
+    public static void debug(String text) {
+        log(Level.DEBUG, text);
+    }
+
+    public static boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) <= 0;
+    }
+
+    public static void log(Level lineLevel, String text) {
+        if (!isEnabled(lineLevel)) return;
+        Record record = new Record(lineLevel, text);
+        synchronized (lock) {
+            if (buffer != null) {
+                if (buffer.size() >= BUFFER_CAPACITY && lineLevel.compareTo(Level.WARN) > 0) {
+                    droppedCount++;
+                    return;
+                }
+                buffer.add(record);
+                lock.notifyAll();
+                return;
+            }
+        }
+        print(record, System.out, System.err);
+    }
+
+
+    /**
+     * Start printing lines in the background, with the given level and format. Lines are printed to the current stdout and stderr.
+     */
+    public static void start(Level maxLevel, Format lineFormat) {
+        synchronized (lock) {
+            if (buffer != null) throw new IllegalStateException("Log already started");
+            level = maxLevel;
+            format = lineFormat;
+            out = System.out;
+            err = System.err;
+            buffer = new ArrayDeque<>();
+            droppedCount = 0;
+            writerThread = new Thread(Log::writeRecords, "log-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Print the line returned by the supplier every intervalSeconds, at INFO level (e.g. progress of the run). Requires Log to be started.
+     */
+    public static void startProgress(Supplier<String> line, long intervalSeconds) {
+        synchronized (lock) {
+            if (buffer == null) throw new IllegalStateException("Log not started");
+            if (progressThread != null) throw new IllegalStateException("Progress already started");
+            progressThread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalSeconds * 1000);
+                        info(line.get());
+                    }
+                } catch (InterruptedException exc) {
+                    // Progress stopped
+                }
+            }, "log-progress");
+            progressThread.setDaemon(true);
+            progressThread.start();
+        }
+    }
+
+    /**
+     * Wait until all lines logged so far are printed.
+     */
+    public static void flush() throws InterruptedException {
+        synchronized (lock) {
+            while (buffer != null && (!buffer.isEmpty() || printing))
+                lock.wait();
+        }
+    }
+
+    /**
+     * Print all buffered lines, and go back to printing lines synchronously.
+     */
+    public static void stop() throws InterruptedException {
+        Thread writer, progress;
+        synchronized (lock) {
+            if (buffer == null) return;
+            writer = writerThread;
+            progress = progressThread;
+            progressThread = null;
+        }
+        if (progress != null) {
+            progress.interrupt();
+            progress.join();
+        }
+        synchronized (lock) {
+            while (!buffer.isEmpty() || printing)
+                lock.wait();
+            buffer = null;
+            writerThread = null;
+            level = Level.DETAIL;
+            format = Format.TEXT;
+            lock.notifyAll();
+        }
+        writer.join();
+    }
+
+
+    private static void writeRecords() {
+        List<Record> batch = new ArrayList<>(MAX_WRITE_BATCH_SIZE);
+        while (true) {
+            long dropped;
+            synchronized (lock) {
+                printing = false;
+                lock.notifyAll();  // Wake up flush()
+                while (buffer != null && buffer.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException exc) {
+                        return;
+                    }
+                }
+                if (buffer == null) return;
+                while (!buffer.isEmpty() && batch.size() < MAX_WRITE_BATCH_SIZE)
+                    batch.add(buffer.poll());
+                dropped = droppedCount;
+                droppedCount = 0;
+                printing = true;
+            }
+            if (dropped > 0)
+                batch.add(0, new Record(Level.WARN, "WARNING: " + dropped + " line(s) of output have been dropped, because the output couldn't keep up"));
+            StringBuilder outText = new StringBuilder();
+            StringBuilder errText = new StringBuilder();
+            for (Record record : batch) {
+                String line = format(record);
+                if (line != null) (isErrorLevel(record.level) ? errText : outText).append(line).append(System.lineSeparator());
+            }
+            if (errText.length() > 0) {
+                err.print(errText);
+                err.flush();
+            }
+            if (outText.length() > 0) {
+                out.print(outText);
+                out.flush();
+            }
+            batch.clear();
+        }
+    }
+
+    private static void print(Record record, PrintStream stdout, PrintStream stderr) {
+        String line = format(record);
+        if (line != null) (isErrorLevel(record.level) ? stderr : stdout).println(line);
+    }
+
+    // Returns null if the record shouldn't be printed
+    private static String format(Record record) {
+        if (format == Format.TEXT) return record.text;
+        if (record.text.trim().isEmpty()) return null;  // Blank lines only separate sections of text output
+        GenericJson json = new GenericJson();
+        json.put("time", Instant.ofEpochMilli(record.timeMillis).toString());
+        json.put("level", record.level.name().toLowerCase());
+        json.put("thread", record.threadName);
+        json.put("message", record.text);
+        try {
+            return GmailInit.JSON_FACTORY.toString(json);
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    private static boolean isErrorLevel(Level lineLevel) {
+        return lineLevel.compareTo(Level.WARN) <= 0;
+    }
+}
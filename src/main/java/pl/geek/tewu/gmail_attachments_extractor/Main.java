@@ -35,7 +35,7 @@ public class Main implements Callable<Integer> {
         options.process();
 
         // Init Gmail API
-        Gmail gmail = GmailInit.getGmail(AppInfo.NAME, options.credentialsFilePath, SCOPES, options.tokensDirectoryPath);
+        Gmail gmail = GmailInit.getGmail(AppInfo.NAME, options.credentialsFilePath, SCOPES, options.tokensDirectoryPath, options.quotaUnitsPerSecond);
         // Check authorization and exit if requested
         if (options.onlyCheckAuth) {
             try {
@@ -46,6 +46,9 @@ public class Main implements Callable<Integer> {
             }
             System.exit(0);
         }
+        // Only estimate the extraction, if requested
+        if (options.planIndexFile != null)
+            return new CapacityPlanner(gmail, "me", options).plan() ? 0 : 1;
         // Extract attachments
         boolean success = new GmailAttachmentsExtractor(gmail, "me", options).extractAttachments();
         return success ? 0 : 1;
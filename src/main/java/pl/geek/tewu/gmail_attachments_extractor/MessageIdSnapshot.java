@@ -0,0 +1,254 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * MessageIdSnapshot is an append-only, disk-backed queue of IDs of all email messages matching the query.
+ * Pages of the messages list are fetched by a background thread, and IDs are appended to a file (one ID per line),
+ * while they are consumed (read from the file) by the processing. That way processing never waits for the next
+ * page to be fetched, the exact number of messages is known as soon as the listing completes, and the set of
+ * processed messages isn't affected by changes that processing makes in Gmail.
+ * <p>
+ * After every page, the listing state (size of the file and the token of the next page) is saved in a state file
+ * next to it, so that an interrupted listing can be resumed.
+ */
+public class MessageIdSnapshot implements Closeable {
+    public static final int READ_BLOCK_SIZE = 64 * 1024;
+    public static final String STATE_FILE_SUFFIX = ".state";
+    private static final String NO_PAGE_TOKEN = "-";
+
+    private final Path file;
+    private final Path stateFile;
+    private final FileOutputStream fileOut;
+    private final OutputStream out;
+    private final RandomAccessFile in;
+    private Thread listingThread;
+    private String resumePageToken;
+
+    // Written only by the listing thread
+    private long writtenBytes;
+    private long writtenCount;
+
+    // Shared between threads - guarded by this
+    private long publishedCount;
+    private long publishedBytes;
+    private long estimatedCount;
+    private boolean complete;
+    private Exception listingFailure;
+    private boolean closed;
+
+    // Read only by the consuming thread
+    private long readCount;
+    private long readOffset;
+
+
+    public interface PageFetcher {
+        ListMessagesResponse fetch(String pageToken) throws IOException;
+    }
+
+
+    public MessageIdSnapshot(Path file) throws IOException {
+        this(file, false);
+    }
+
+    private MessageIdSnapshot(Path file, boolean resume) throws IOException {
+        this.file = file;
+        this.stateFile = file.resolveSibling(file.getFileName() + STATE_FILE_SUFFIX);
+        if (resume && Files.exists(stateFile)) {
+            // State file line is: FILE_SIZE IDS_COUNT NEXT_PAGE_TOKEN
+            String[] state = new String(Files.readAllBytes(stateFile), StandardCharsets.US_ASCII).trim().split(" ");
+            writtenBytes = publishedBytes = Long.parseLong(state[0]);
+            writtenCount = publishedCount = estimatedCount = Long.parseLong(state[1]);
+            resumePageToken = NO_PAGE_TOKEN.equals(state[2]) ? null : state[2];
+            complete = resumePageToken == null;
+        }
+        if (resume) {
+            // Drop IDs appended after the state has been saved - their page is going to be fetched again
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.truncate(writtenBytes);
+            }
+        }
+        this.fileOut = new FileOutputStream(file.toFile(), true);
+        this.out = new BufferedOutputStream(fileOut);
+        this.in = new RandomAccessFile(file.toFile(), "r");
+    }
+
+    /**
+     * Open snapshot saved by an interrupted run. All IDs saved so far can be read again with next().
+     * Call resumeListing, to list the remaining pages.
+     */
+    public static MessageIdSnapshot resume(Path file) throws IOException {
+        return new MessageIdSnapshot(file, true);
+    }
+
+    /**
+     * Append IDs from the given (first) page of messages, and start fetching the remaining pages in the background.
+     */
+    public void startListing(ListMessagesResponse firstPage, PageFetcher fetcher) throws IOException {
+        appendPage(firstPage);
+        if (firstPage.getNextPageToken() == null) {
+            markComplete();
+            return;
+        }
+        startListingThread(firstPage.getNextPageToken(), fetcher);
+    }
+
+    /**
+     * Start fetching the pages, that hasn't been listed by the interrupted run, in the background.
+     */
+    public void resumeListing(PageFetcher fetcher) throws IOException {
+        if (complete) return;
+        if (resumePageToken == null) {  // Interrupted run hasn't saved any state - start listing over
+            startListing(fetcher.fetch(null), fetcher);
+            return;
+        }
+        startListingThread(resumePageToken, fetcher);
+    }
+
+    /**
+     * Get up to maxCount next message IDs, blocking until some are available.
+     * Returns empty list when all IDs have been read.
+     */
+    public synchronized List<String> next(int maxCount) throws IOException, InterruptedException {
+        while (readCount == publishedCount && !complete && listingFailure == null && !closed)
+            wait();
+        if (readCount == publishedCount && listingFailure != null)
+            throw new IOException("Listing email messages failed", listingFailure);
+
+        List<String> ids = new ArrayList<>(maxCount);
+        while (ids.size() < maxCount && readCount < publishedCount) {
+            byte[] buf = new byte[(int) Math.min(READ_BLOCK_SIZE, publishedBytes - readOffset)];
+            in.seek(readOffset);
+            in.readFully(buf);
+            int lineStart = 0;
+            for (int i = 0; i < buf.length && ids.size() < maxCount; i++) {
+                if (buf[i] == '\n') {
+                    ids.add(new String(buf, lineStart, i - lineStart, StandardCharsets.US_ASCII));
+                    lineStart = i + 1;
+                    readCount++;
+                }
+            }
+            readOffset += lineStart;
+        }
+        return ids;
+    }
+
+    /**
+     * Block until all pages of messages are listed.
+     */
+    public synchronized void awaitComplete() throws IOException, InterruptedException {
+        while (!complete && listingFailure == null && !closed)
+            wait();
+        if (listingFailure != null)
+            throw new IOException("Listing email messages failed", listingFailure);
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Get number of messages matching the query - it's exact if listing is complete, otherwise it's an estimate.
+     */
+    public synchronized long getTotalCount() {
+        return complete ? publishedCount : Math.max(publishedCount, estimatedCount);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (listingThread != null) {
+            try {
+                listingThread.join();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private void startListingThread(String pageToken, PageFetcher fetcher) {
+        listingThread = new Thread(() -> listRemainingPages(pageToken, fetcher), "message-ids-listing");
+        listingThread.setDaemon(true);
+        listingThread.start();
+    }
+
+    private void listRemainingPages(String pageToken, PageFetcher fetcher) {
+        try {
+            while (pageToken != null) {
+                synchronized (this) {
+                    if (closed) return;
+                }
+                ListMessagesResponse page = fetcher.fetch(pageToken);
+                appendPage(page);
+                pageToken = page.getNextPageToken();
+            }
+            markComplete();
+        } catch (IOException | RuntimeException exc) {
+            synchronized (this) {
+                listingFailure = exc;
+                notifyAll();
+            }
+        }
+    }
+
+    private void appendPage(ListMessagesResponse page) throws IOException {
+        List<Message> msgs = page.getMessages();
+        int count = 0;
+        if (msgs != null) {
+            for (Message msg : msgs) {
+                byte[] line = (msg.getId() + "\n").getBytes(StandardCharsets.US_ASCII);
+                out.write(line);
+                writtenBytes += line.length;
+                writtenCount++;
+                count++;
+            }
+        }
+        out.flush();
+        fileOut.getChannel().force(false);  // IDs must be on disk before the state referencing them
+        saveState(page.getNextPageToken());
+        synchronized (this) {
+            publishedCount += count;
+            publishedBytes = writtenBytes;
+            long remainingEstimate = page.getResultSizeEstimate() == null ? 0 : page.getResultSizeEstimate();
+            estimatedCount = publishedCount - count + remainingEstimate;  // Estimate of each page is an estimate of messages remaining from that page onward
+            notifyAll();
+        }
+    }
+
+    private void saveState(String nextPageToken) throws IOException {
+        byte[] state = (writtenBytes + " " + writtenCount + " " + (nextPageToken != null ? nextPageToken : NO_PAGE_TOKEN) + "\n").getBytes(StandardCharsets.US_ASCII);
+        Path tmpFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(state));
+            channel.force(false);
+        }
+        Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void markComplete() {
+        complete = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,43 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.services.gmail.model.Message;
+
+import javax.mail.BodyPart;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * State of a single email message, as it's being processed by GmailAttachmentsExtractor.
+ * Every processing stage reads state set by the previous stages and adds its own.
+ */
+class MessageTask {
+    final String id;
+    int number;  // Position of the message in processing order (starting from 1)
+    Journal.State resumedState;  // State recorded by the resumed run, or null if the message hasn't been processed by it
+    boolean fetchRaw;  // Fetch the raw message right away, if its metadata hasn't been got
+
+    // Set by fetch stage
+    Message msg;
+    List<Long> attachmentSizes = new LinkedList<>();  // Sizes reported by Gmail, or null if unknown
+    int attachmentToExtractCount;
+    RawMessage rawMsg;
+
+    // Set by parse stage
+    AccessibleMimeMessage mimeMsg;
+    String messageId;
+    String messageSubject;
+    Instant receiveDate;
+    Path attachmentsDir;
+    BodyPart[] parts;
+
+    // Set by write stage
+    Path copyFile;  // Copy of the message, prepared for insertion
+
+
+    MessageTask(String id) {
+        this.id = id;
+    }
+}
@@ -0,0 +1,203 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * MetadataIndex is a compact, on-disk index of metadata of email messages matching a query - for every message it keeps
+ * only the fields used for deciding which attachments to extract, and for processing the message (IDs, size, labels,
+ * a few headers, and file names, MIME types and sizes of top-level parts).
+ * The index is a gzipped binary file, written in a streaming fashion, and read into memory as a whole.
+ */
+public class MetadataIndex {
+    public static final int MAGIC = 0x47414549;  // "GAEI"
+    public static final int VERSION = 1;
+    public static final List<String> INDEXED_HEADERS = Arrays.asList("Subject", "Message-ID", "Date");
+    // Fields of Message resource, that need to be fetched to build the index
+    public static final String MESSAGE_FIELDS = "id,threadId,labelIds,sizeEstimate,internalDate,payload(headers,parts(filename,mimeType,body(size,attachmentId)))";
+
+    private final String query;
+    private final long createdMillis;
+    private final Map<String, Message> messages;
+
+
+    private MetadataIndex(String query, long createdMillis, Map<String, Message> messages) {
+        this.query = query;
+        this.createdMillis = createdMillis;
+        this.messages = messages;
+    }
+
+    public static MetadataIndex read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), Utils.COPY_BUFFER_SIZE)))) {
+            if (in.readInt() != MAGIC) throw new IOException("File '" + file + "' isn't a metadata index");
+            if (in.readInt() != VERSION) throw new IOException("Metadata index '" + file + "' has unsupported version");
+            String query = readString(in);
+            long createdMillis = in.readLong();
+            Map<String, Message> messages = new LinkedHashMap<>();
+            while (in.readBoolean()) {  // Every entry is preceded by true, and the last one is followed by false
+                Message msg = readMessage(in);
+                messages.put(msg.getId(), msg);
+            }
+            return new MetadataIndex(query, createdMillis, messages);
+        } catch (EOFException exc) {
+            throw new IOException("Metadata index '" + file + "' is incomplete", exc);
+        }
+    }
+
+    public static Writer create(Path file, String query) throws IOException {
+        return new Writer(file, query);
+    }
+
+
+    public String getQuery() {
+        return query;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public Collection<Message> getMessages() {
+        return messages.values();
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * Get metadata of the message, in the same form as returned by messages.get (but limited to the indexed fields).
+     * Returns null if the message isn't in the index, or if the index lacks data needed to process it - content
+     * of small attachments is included in the metadata (instead of an attachment ID), but isn't indexed.
+     */
+    public Message get(String messageId) {
+        Message msg = messages.get(messageId);
+        if (msg == null || msg.getPayload().getParts() == null) return msg;
+        for (MessagePart part : msg.getPayload().getParts()) {
+            MessagePartBody body = part.getBody();
+            if (part.getFilename() != null && !part.getFilename().isEmpty() && body != null && body.getAttachmentId() == null && body.getSize() != null && body.getSize() > 0)
+                return null;
+        }
+        return msg;
+    }
+
+
+    /**
+     * Writes index entries to the file, as they are added.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+
+        private Writer(Path file, String query) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file), Utils.COPY_BUFFER_SIZE)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, query);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        public void add(Message msg) throws IOException {
+            out.writeBoolean(true);
+            writeMessage(out, msg);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeBoolean(false);
+            out.close();
+        }
+    }
+
+
+    private static void writeMessage(DataOutputStream out, Message msg) throws IOException {
+        writeString(out, msg.getId());
+        writeString(out, msg.getThreadId());
+        out.writeLong(msg.getInternalDate() != null ? msg.getInternalDate() : -1);
+        out.writeInt(msg.getSizeEstimate() != null ? msg.getSizeEstimate() : -1);
+        List<String> labelIds = msg.getLabelIds() != null ? msg.getLabelIds() : Collections.emptyList();
+        out.writeInt(labelIds.size());
+        for (String labelId : labelIds)
+            writeString(out, labelId);
+
+        List<MessagePartHeader> headers = new ArrayList<>();
+        List<MessagePart> parts = Collections.emptyList();
+        if (msg.getPayload() != null) {
+            if (msg.getPayload().getHeaders() != null)
+                for (MessagePartHeader header : msg.getPayload().getHeaders())
+                    if (INDEXED_HEADERS.contains(header.getName())) headers.add(header);
+            if (msg.getPayload().getParts() != null) parts = msg.getPayload().getParts();
+        }
+        out.writeInt(headers.size());
+        for (MessagePartHeader header : headers) {
+            writeString(out, header.getName());
+            writeString(out, header.getValue());
+        }
+        out.writeInt(parts.size());
+        for (MessagePart part : parts) {
+            writeString(out, part.getFilename());
+            writeString(out, part.getMimeType());
+            MessagePartBody body = part.getBody();
+            out.writeLong(body != null && body.getSize() != null ? body.getSize() : -1);
+            writeString(out, body != null ? body.getAttachmentId() : null);
+        }
+    }
+
+    private static Message readMessage(DataInputStream in) throws IOException {
+        Message msg = new Message().setId(readString(in)).setThreadId(readString(in));
+        long internalDate = in.readLong();
+        if (internalDate != -1) msg.setInternalDate(internalDate);
+        int sizeEstimate = in.readInt();
+        if (sizeEstimate != -1) msg.setSizeEstimate(sizeEstimate);
+        int labelsCount = in.readInt();
+        List<String> labelIds = new ArrayList<>(labelsCount);
+        for (int i = 0; i < labelsCount; i++)
+            labelIds.add(readString(in));
+        msg.setLabelIds(labelIds);
+
+        int headersCount = in.readInt();
+        List<MessagePartHeader> headers = new ArrayList<>(headersCount);
+        for (int i = 0; i < headersCount; i++)
+            headers.add(new MessagePartHeader().setName(readString(in)).setValue(readString(in)));
+        int partsCount = in.readInt();
+        List<MessagePart> parts = new ArrayList<>(partsCount);
+        for (int i = 0; i < partsCount; i++) {
+            MessagePart part = new MessagePart().setFilename(readString(in)).setMimeType(readString(in));
+            long size = in.readLong();
+            String attachmentId = readString(in);
+            if (size != -1 || attachmentId != null)
+                part.setBody(new MessagePartBody().setSize(size != -1 ? (int) size : null).setAttachmentId(attachmentId));
+            parts.add(part);
+        }
+        return msg.setPayload(new MessagePart().setHeaders(headers).setParts(partsCount > 0 ? parts : null));
+    }
+
+    // Strings are written as length of their UTF-8 encoding (-1 for null), followed by the encoding
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
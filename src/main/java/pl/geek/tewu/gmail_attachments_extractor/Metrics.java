@@ -0,0 +1,303 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.client.json.GenericJson;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Metrics collects latency histograms (and byte counts) of processing stages and of Gmail API requests,
+ * and counters of Gmail API calls by method. Metrics can be exported to a JSON file and/or a file in
+ * Prometheus text exposition format (e.g. for node_exporter's textfile collector), periodically while
+ * the run lasts. All methods are thread safe.
+ */
+public class Metrics {
+    public static final String PROMETHEUS_PREFIX = "gmail_attachments_extractor_";
+    // Upper bounds of histogram buckets (1-2-5 series, from 0.1 ms to 1000 s) - percentiles are interpolated within a bucket
+    public static final double[] BUCKET_BOUNDS_SECONDS = {
+            0.0001, 0.0002, 0.0005, 0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5,
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000
+    };
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Timer> stages = new ConcurrentSkipListMap<>();
+    private final Map<String, Timer> apiRequests = new ConcurrentSkipListMap<>();
+    private final Map<String, AtomicLong> apiCalls = new ConcurrentSkipListMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService exporter;
+
+
+    /**
+     * Timer records durations in a histogram, along with the number of bytes processed during them.
+     */
+    public static class Timer {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_SECONDS.length + 1);  // The last one is unbounded
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        public void recordSince(long startNanos) {
+            recordSince(startNanos, 0);
+        }
+
+        public void recordSince(long startNanos, long byteCount) {
+            record(System.nanoTime() - startNanos, byteCount);
+        }
+
+        public void record(long nanos, long byteCount) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKET_BOUNDS_SECONDS.length && seconds > BUCKET_BOUNDS_SECONDS[i]) i++;
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            bytes.addAndGet(byteCount);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getTotalSeconds() {
+            return totalNanos.get() / 1e9;
+        }
+
+        public double getMaxSeconds() {
+            return maxNanos.get() / 1e9;
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Estimate the quantile (e.g. 0.95) of recorded durations, in seconds.
+         */
+        public double getQuantile(double quantile) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++)
+                total += counts[i] = buckets.get(i);
+            if (total == 0) return 0;
+            double rank = quantile * total;
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+                    double lower = i == 0 ? 0 : BUCKET_BOUNDS_SECONDS[i - 1];
+                    double upper = i < BUCKET_BOUNDS_SECONDS.length ? BUCKET_BOUNDS_SECONDS[i] : getMaxSeconds();
+                    return Math.min(lower + (upper - lower) * (rank - cumulative) / counts[i], getMaxSeconds());
+                }
+                cumulative += counts[i];
+            }
+            return getMaxSeconds();
+        }
+    }
+
+
+    /**
+     * Get timer of the processing stage with the given name (e.g. "fetch.raw"), creating it if needed.
+     */
+    public Timer stage(String name) {
+        return stages.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Get timer of HTTP requests to Gmail API with the given name (API method name, "batch" or "upload").
+     * Timers of API requests measure time to the response headers, as the response content is streamed.
+     */
+    public Timer apiRequest(String name) {
+        return apiRequests.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public Map<String, Timer> getStages() {
+        return Collections.unmodifiableMap(stages);
+    }
+
+    public void countApiCall(String apiMethodName) {
+        apiCalls.computeIfAbsent(apiMethodName, n -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void count(String name, long delta) {
+        counters.computeIfAbsent(name, n -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Register a value (e.g. number of processed email messages), that is read whenever metrics are exported.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+
+    public GenericJson toJson() {
+        GenericJson json = new GenericJson();
+        json.put("timestamp", Instant.now().toString());
+        json.put("startTimestamp", Instant.ofEpochMilli(startMillis).toString());
+        json.put("uptimeSeconds", getUptimeSeconds());
+        GenericJson gaugesJson = new GenericJson();
+        gauges.forEach((name, value) -> gaugesJson.put(name, value.getAsLong()));
+        json.put("gauges", gaugesJson);
+        json.put("stages", timersToJson(stages));
+        json.put("apiRequests", timersToJson(apiRequests));
+        GenericJson callsJson = new GenericJson();
+        apiCalls.forEach((name, count) -> callsJson.put(name, count.get()));
+        json.put("apiCalls", callsJson);
+        GenericJson countersJson = new GenericJson();
+        counters.forEach((name, count) -> countersJson.put(name, count.get()));
+        json.put("counters", countersJson);
+        return json;
+    }
+
+    private GenericJson timersToJson(Map<String, Timer> timers) {
+        GenericJson json = new GenericJson();
+        timers.forEach((name, timer) -> {
+            GenericJson timerJson = new GenericJson();
+            timerJson.put("count", timer.getCount());
+            timerJson.put("totalSeconds", timer.getTotalSeconds());
+            timerJson.put("p50Seconds", timer.getQuantile(0.50));
+            timerJson.put("p95Seconds", timer.getQuantile(0.95));
+            timerJson.put("p99Seconds", timer.getQuantile(0.99));
+            timerJson.put("maxSeconds", timer.getMaxSeconds());
+            if (timer.getBytes() > 0) {
+                timerJson.put("bytes", timer.getBytes());
+                timerJson.put("bytesPerSecond", timer.getTotalSeconds() > 0 ? timer.getBytes() / timer.getTotalSeconds() : 0);
+            }
+            json.put(name, timerJson);
+        });
+        return json;
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        appendMetadata(sb, "uptime_seconds", "gauge", "Time since the run has started.");
+        sb.append(PROMETHEUS_PREFIX).append("uptime_seconds ").append(formatDouble(getUptimeSeconds())).append('\n');
+        gauges.forEach((name, value) -> {
+            appendMetadata(sb, name, "gauge", "Value of " + name + ".");
+            sb.append(PROMETHEUS_PREFIX).append(name).append(' ').append(value.getAsLong()).append('\n');
+        });
+        appendHistograms(sb, "stage_duration_seconds", "stage", "Time spent in processing stages.", stages);
+        appendBytes(sb, "stage_bytes_total", "stage", "Bytes processed by processing stages.", stages);
+        appendHistograms(sb, "api_request_duration_seconds", "method", "Time to response headers of Gmail API requests.", apiRequests);
+        appendCounters(sb, "api_calls_total", "method", "Gmail API method calls (including retries).", apiCalls);
+        counters.forEach((name, count) -> {
+            appendMetadata(sb, name + "_total", "counter", "Count of " + name + ".");
+            sb.append(PROMETHEUS_PREFIX).append(name).append("_total ").append(count.get()).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static void appendHistograms(StringBuilder sb, String name, String labelName, String help, Map<String, Timer> timers) {
+        if (timers.isEmpty()) return;
+        appendMetadata(sb, name, "histogram", help);
+        timers.forEach((labelValue, timer) -> {
+            String label = labelName + "=\"" + escapeLabelValue(labelValue) + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < timer.buckets.length(); i++) {
+                cumulative += timer.buckets.get(i);
+                String bound = i < BUCKET_BOUNDS_SECONDS.length ? formatDouble(BUCKET_BOUNDS_SECONDS[i]) : "+Inf";
+                sb.append(PROMETHEUS_PREFIX).append(name).append("_bucket{").append(label).append(",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(PROMETHEUS_PREFIX).append(name).append("_sum{").append(label).append("} ").append(formatDouble(timer.getTotalSeconds())).append('\n');
+            sb.append(PROMETHEUS_PREFIX).append(name).append("_count{").append(label).append("} ").append(cumulative).append('\n');
+        });
+    }
+
+    private static void appendBytes(StringBuilder sb, String name, String labelName, String help, Map<String, Timer> timers) {
+        if (timers.values().stream().allMatch(t -> t.getBytes() == 0)) return;
+        appendMetadata(sb, name, "counter", help);
+        timers.forEach((labelValue, timer) -> {
+            if (timer.getBytes() > 0)
+                sb.append(PROMETHEUS_PREFIX).append(name).append('{').append(labelName).append("=\"").append(escapeLabelValue(labelValue)).append("\"} ").append(timer.getBytes()).append('\n');
+        });
+    }
+
+    private static void appendCounters(StringBuilder sb, String name, String labelName, String help, Map<String, AtomicLong> counts) {
+        if (counts.isEmpty()) return;
+        appendMetadata(sb, name, "counter", help);
+        counts.forEach((labelValue, count) ->
+                sb.append(PROMETHEUS_PREFIX).append(name).append('{').append(labelName).append("=\"").append(escapeLabelValue(labelValue)).append("\"} ").append(count.get()).append('\n'));
+    }
+
+    private static void appendMetadata(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PROMETHEUS_PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PROMETHEUS_PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String formatDouble(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    private double getUptimeSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+
+    /**
+     * Save metrics to the given files (either can be null). Files are replaced atomically, so that readers
+     * never see them partially written.
+     */
+    public void save(Path jsonFile, Path prometheusFile) throws IOException {
+        if (jsonFile != null) saveAtomically(jsonFile, GmailInit.JSON_FACTORY.toPrettyString(toJson()));
+        if (prometheusFile != null) saveAtomically(prometheusFile, toPrometheus());
+    }
+
+    private static void saveAtomically(Path file, String content) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmpFile, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Start saving metrics to the given files every intervalSeconds, in a background thread.
+     */
+    public synchronized void startExport(Path jsonFile, Path prometheusFile, long intervalSeconds) {
+        if (exporter != null) throw new IllegalStateException("Export already started");
+        exporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exporter.scheduleWithFixedDelay(() -> {
+            try {
+                save(jsonFile, prometheusFile);
+            } catch (IOException | RuntimeException exc) {
+                Log.warn("WARNING: Failed to save metrics: " + exc);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop saving metrics periodically, and save them for the last time.
+     */
+    public synchronized void stopExport(Path jsonFile, Path prometheusFile) throws IOException, InterruptedException {
+        if (exporter != null) {
+            exporter.shutdown();
+            exporter.awaitTermination(1, TimeUnit.MINUTES);
+            exporter = null;
+        }
+        save(jsonFile, prometheusFile);
+    }
+}
@@ -0,0 +1,121 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * NameRegistry creates files and directories with unique names (e.g. "image001.png", "image001.png 2", ...),
+ * without probing the file system for names that are already taken. Names taken in each directory are kept in memory -
+ * they are read from the directory listing once, when the directory is first used (e.g. when resuming a run), and
+ * directories created by the registry start empty. Files and directories are created atomically (failing if they
+ * already exist), so names taken by someone else, or equal to taken names on case-insensitive file systems,
+ * are skipped as well. Names of a directory are dropped from memory when the directory is released.
+ */
+public class NameRegistry {
+    private final Map<Path, DirNames> namesByDir = new ConcurrentHashMap<>();
+
+
+    private static class DirNames {
+        final Set<String> taken = new HashSet<>();
+        final Map<String, Integer> nextNumByName = new HashMap<>();  // Number of the next name to try, for names with numbered variants
+
+        // Take a free variant of the name - the name itself, or the name followed by a number from 2 to maxNum. Returns null if all variants are taken.
+        synchronized String take(String name, int maxNum) {
+            if (taken.add(name)) return name;
+            int num = nextNumByName.getOrDefault(name, 2);
+            while (num <= maxNum && taken.contains(name + " " + num))
+                num++;
+            if (num > maxNum) return null;
+            nextNumByName.put(name, num + 1);
+            String variant = name + " " + num;
+            taken.add(variant);
+            return variant;
+        }
+    }
+
+
+    /**
+     * Create new directory in the parent directory, named name or name followed by a number from 2 to maxNum.
+     * Returns null if all of those names are taken.
+     */
+    public Path createDirectory(Path parent, String name, int maxNum) throws IOException {
+        DirNames names = getDirNames(parent);
+        String uniqueName;
+        while ((uniqueName = names.take(name, maxNum)) != null) {
+            Path dir = parent.resolve(uniqueName);
+            try {
+                Files.createDirectory(dir);
+            } catch (FileAlreadyExistsException exc) {
+                continue;
+            }
+            namesByDir.put(dir, new DirNames());
+            return dir;
+        }
+        return null;
+    }
+
+    /**
+     * Create new empty file in the directory, named name or name followed by a number from 2 to maxNum.
+     */
+    public Path createFile(Path dir, String name, int maxNum) throws IOException {
+        DirNames names = getDirNames(dir);
+        String uniqueName;
+        while ((uniqueName = names.take(name, maxNum)) != null) {
+            Path file = dir.resolve(uniqueName);
+            try {
+                return Files.createFile(file);
+            } catch (FileAlreadyExistsException exc) {
+                // Try next name
+            }
+        }
+        throw new RuntimeException("Can't find unique file path for '" + dir.resolve(name) + "'");
+    }
+
+    /**
+     * Take unique name for a directory, like createDirectory does, but without creating anything on disk (e.g. for
+     * directories of archive entries). Returns null if all names are taken.
+     */
+    public Path reserveDirectory(Path parent, String name, int maxNum) throws IOException {
+        String uniqueName = getDirNames(parent).take(name, maxNum);
+        if (uniqueName == null) return null;
+        Path dir = parent.resolve(uniqueName);
+        namesByDir.put(dir, new DirNames());
+        return dir;
+    }
+
+    /**
+     * Take unique name for a file, like createFile does, but without creating anything on disk.
+     */
+    public Path reserveFile(Path dir, String name, int maxNum) throws IOException {
+        String uniqueName = getDirNames(dir).take(name, maxNum);
+        if (uniqueName == null) throw new RuntimeException("Can't find unique file path for '" + dir.resolve(name) + "'");
+        return dir.resolve(uniqueName);
+    }
+
+    /**
+     * Forget names taken in the directory - no more files or directories are going to be created in it.
+     */
+    public void release(Path dir) {
+        namesByDir.remove(dir);
+    }
+
+    private DirNames getDirNames(Path dir) throws IOException {
+        DirNames names = namesByDir.get(dir);
+        if (names != null) return names;
+        names = new DirNames();
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries)
+                    names.taken.add(entry.getFileName().toString());
+            }
+        }
+        DirNames existing = namesByDir.putIfAbsent(dir, names);
+        return existing != null ? existing : names;
+    }
+}
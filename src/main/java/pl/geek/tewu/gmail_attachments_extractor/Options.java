@@ -1,9 +1,12 @@
 package pl.geek.tewu.gmail_attachments_extractor;
 
+import com.google.api.client.googleapis.media.MediaHttpUploader;
 import picocli.CommandLine.*;
 import picocli.CommandLine.Model.CommandSpec;
 
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -67,6 +70,24 @@ public class Options {
     public boolean noModifyGmail;
     public boolean modifyGmail;
 
+    @Option(
+            names = {"--resume"},
+            description = "Resume interrupted run, that has been extracting attachments to OUTPUT_DIRECTORY. Email messages, which processing has been finished, are skipped, and the ones that have been processed partially are finished without downloading them again. Run the program with the same QUERY_STRING and options as the interrupted run."
+    )
+    public boolean resume;
+
+    @Option(
+            names = {"--incremental"},
+            paramLabel = "STATE_FILE", description = "Process only email messages matching QUERY_STRING, that has been added to the mailbox since the previous run with the same STATE_FILE (based on the mailbox history). If the previous run is unknown, or its history is no longer available, then all email messages matching QUERY_STRING are processed. Output labels are reused by consecutive runs, and email messages that already have output labels are skipped."
+    )
+    public Path incrementalStateFile;
+
+    @Option(
+            names = {"--batch-label"},
+            description = "Add the label to the original emails in bulk (up to " + LabelBatcher.MAX_BATCH_SIZE + " emails per request), instead of sending a separate request for every email. Pending labels are added after every page (batch) of emails is processed, and before the program exits - also when it exits because of an error."
+    )
+    public boolean batchLabel;
+
     @Option(
             names = {"--fail-late"},
             description = "If processing email message is unsuccessful (results in an error), ignore that error and proceed to the next email. All ignored errors are listed at the end of the program execution. Running the program with --fail-late switch is STRONGLY DISCOURAGED! Ignoring errors shouldn't cause any immediate problems, but it may confuse You about which actions program performed successfully, and which not, and in result You may get tricked to act in a way that can lead to data loss, email duplication and other unforeseen consequences. Please use --fail-late switch only for debugging purposes, and not to do actual work of extracting attachments."
@@ -86,13 +107,202 @@ public class Options {
     )
     public boolean validate;
 
+    @Option(
+            names = {"--digests"},
+            split = ",",
+            defaultValue = DigestUtils.Algorithms.SHA_1 + "," + DigestUtils.Algorithms.MD5,
+            paramLabel = "ALGORITHMS", description = "Comma separated list of algorithms used to calculate digests of extracted attachments, that are included in the copies of emails. Digests are calculated while attachments are being saved. Available algorithms depend on the Java runtime, e.g. MD5, SHA-1, SHA-256, SHA-512"
+    )
+    public String[] digestAlgorithms;
+
+    @Option(
+            names = {"--dedup"},
+            description = "Store every unique attachment content only once, in a content-addressed store (see --dedup-store). Attachment files in email directories become hard links to the stored content."
+    )
+    public boolean dedup;
+
+    @Option(
+            names = {"--dedup-store"},
+            paramLabel = "STORE_DIR", description = "Path to directory of the deduplicating store. The store can be reused by later runs, so that attachments already stored by them aren't stored again - it should be on the same file system as the output directory. Implies --dedup. By default, the store is created in the output directory (in '" + GmailAttachmentsExtractor.STATE_DIR_NAME + "' subdirectory)."
+    )
+    public Path dedupStoreDir;
+
+    @Option(
+            names = {"--sync-attachments"},
+            description = "Make sure attachment files of every email message are durably saved to disk (fsync) before the copy of the email message is inserted to Gmail, so that a power failure can't lose attachments already deleted from Gmail. Files of an email message are synced together, once all of them are saved."
+    )
+    public boolean syncAttachments;
+
+    @Option(
+            names = {"--compress"},
+            description = "Save attachments compressed with gzip (with '.gz' appended to their file names), unless their content is compressed already (e.g. images, videos, archives, PDF and office documents - judging by their MIME types and file name extensions). Attachments are compressed while they are being saved, in parallel, by a pool of --compression-threads threads. Digests and sizes in the descriptors (and the attachment filter) are of the original, not compressed, content. Can't be used with --dedup."
+    )
+    public boolean compress;
+
+    @Option(
+            names = {"--compression-threads"},
+            defaultValue = "0",
+            paramLabel = "N", description = "Compress attachments (see --compress) using N threads. Use 0 to use as many threads as there are processors."
+    )
+    public int compressionThreads;
+
+    @Option(
+            names = {"--spill-threshold"},
+            defaultValue = "10M",
+            paramLabel = "SIZE", description = "Keep email messages larger than SIZE in temporary files, instead of memory, while they are being processed. Specify value in bytes or use suffix k, M or G. Use 0 to always keep email messages in memory. Also, when attachments are saved to archives (see --output-format), attachments larger than SIZE are written right into the archive, and smaller ones are kept in memory until they are added to it."
+    )
+    String spillThresholdStr;
+    public long spillThreshold;
+
+    @Option(
+            names = {"--temp-dir"},
+            paramLabel = "TEMP_DIR", description = "Path to directory, where temporary files get stored. By default, temporary files are stored in the output directory (in '" + GmailAttachmentsExtractor.STATE_DIR_NAME + "' subdirectory), and are deleted before the program exits."
+    )
+    public Path tempDir;
+
+    @Option(
+            names = {"--upload-chunk-size"},
+            defaultValue = "10M",
+            paramLabel = "SIZE", description = "Upload copies of emails to Gmail in chunks of SIZE, using resumable upload - if uploading a chunk fails, only that chunk is sent again. Specify value in bytes or use suffix k, M or G. The value is rounded up to a multiple of 256 KiB."
+    )
+    String uploadChunkSizeStr;
+    public int uploadChunkSize;
+
+    @Option(
+            names = {"--quota-rate"},
+            defaultValue = "" + QuotaRateLimiter.GMAIL_USER_UNITS_PER_SECOND,
+            paramLabel = "UNITS_PER_SECOND", description = "Don't use more than UNITS_PER_SECOND Gmail API quota units per second. Every Gmail API method costs a number of quota units (e.g. getting an email message costs 5 units, and inserting one costs 25 units). Requests rejected because of exceeding the rate limit are retried after a delay."
+    )
+    public int quotaUnitsPerSecond;
+
     @Option(
             names = {"--inter-message-wait"},
+            hidden = true,
             defaultValue = "0",
-            description = "Waits that many milliseconds before processing each email massage. Slowing down the program might help to avoid exceeding gmail API quota."
+            description = "Deprecated and ignored - use --quota-rate instead."
     )
     public int interMessageWait;
 
+    @Option(
+            names = {"--fetch-strategy"},
+            defaultValue = "metadata",
+            paramLabel = "STRATEGY", description = "How to fetch email messages: 'metadata' - get metadata of every email message first, and get the whole (raw) message only if it has attachments to extract; 'raw' - get every raw email message right away, and check its attachments after parsing it, which saves a request per email when nearly all emails have attachments to extract (e.g. with query \"has:attachment larger:5M\"), but downloads whole emails that don't; 'auto' - start with 'metadata', and switch to 'raw' while at least " + (int) (GmailAttachmentsExtractor.AUTO_RAW_FETCH_MIN_HIT_RATE * 100) + "%% of processed emails have attachments to extract. Ignored when only attachments are downloaded (see --attachment-downloads). Valid values: metadata, raw, auto."
+    )
+    String fetchStrategyStr;
+    public FetchStrategy fetchStrategy;
+
+    public enum FetchStrategy {
+        METADATA, RAW, AUTO
+    }
+
+    @Option(
+            names = {"--metadata-batch-size"},
+            defaultValue = "50",
+            paramLabel = "N", description = "Get metadata of email messages in batches of N messages per HTTP request (max " + GmailAttachmentsExtractor.MAX_BATCH_SIZE + ")."
+    )
+    public int metadataBatchSize;
+
+    @Option(
+            names = {"--parallelism"},
+            defaultValue = "1",
+            paramLabel = "N", description = "Process up to N email messages at the same time. Processing is split into stages (fetch, parse, write, insert/label), and each stage gets its own pool of N threads, so that the network and the disk are kept busy at the same time. With N equal to 1, email messages are processed one by one."
+    )
+    public int parallelism;
+
+    @Option(
+            names = {"--attachment-downloads"},
+            defaultValue = "4",
+            paramLabel = "N", description = "When Gmail doesn't get modified (see --no-modify-gmail), download only the attachments (not whole email messages), up to N attachments at the same time."
+    )
+    public int attachmentDownloads;
+
+    @Option(
+            names = {"--plan"},
+            paramLabel = "INDEX_FILE", description = "Don't extract attachments - only estimate what a run with the given QUERY_STRING and attachment filter would do: how many attachments (and bytes) it would extract, and how much Gmail API quota (and time) it would use. Metadata of email messages matching QUERY_STRING is saved in a compact index in INDEX_FILE, and reused by later plans with the same QUERY_STRING, so that different attachment filters can be evaluated instantly. Delete INDEX_FILE to plan against the current state of the mailbox."
+    )
+    public Path planIndexFile;
+
+    @Option(
+            names = {"--metadata-index"},
+            paramLabel = "INDEX_FILE", description = "Take metadata of email messages from the index created by --plan with the same QUERY_STRING, instead of getting it from Gmail. Metadata of email messages missing from the index is got from Gmail as usual. Labels of the original emails (copied to the inserted copies) are the ones from the time the index was created."
+    )
+    public Path metadataIndexFile;
+
+    @Option(
+            names = {"--layout"},
+            defaultValue = "flat",
+            paramLabel = "LAYOUT", description = "How to arrange directories with attachments of email messages in OUTPUT_DIRECTORY: 'flat' - all directories directly in OUTPUT_DIRECTORY; 'date' - in a directory per day the email has been received, e.g. '2021/01/25/2021.01.25 13_45_00 Subject'; 'hash' - in one of 65536 directories chosen by a hash of the email's ID, e.g. '3f/a2/2021.01.25 13_45_00 Subject'. Use 'date' or 'hash' when extracting attachments from hundreds of thousands of emails, to keep directories small. Path of the attachment file, relative to OUTPUT_DIRECTORY, is recorded in the descriptor. Valid values: flat, date, hash."
+    )
+    String layoutStr;
+    public Layout layout;
+
+    public enum Layout {
+        FLAT, DATE, HASH
+    }
+
+    @Option(
+            names = {"--output-format"},
+            defaultValue = "dir",
+            paramLabel = "FORMAT", description = "How to save extracted attachments: 'dir' - as files in OUTPUT_DIRECTORY; 'zip' or 'tar' - as entries of archives in OUTPUT_DIRECTORY (" + ArchiveSink.VOLUME_NAME_PREFIX + "00001.zip, " + ArchiveSink.VOLUME_NAME_PREFIX + "00002.zip, ...), written as a single sequential stream, with the directory of every email message (see --layout) as the prefix of its entries' paths. Attachments larger than --spill-threshold are written right into the archive, while smaller ones are buffered and added as a whole. A new archive is started when the current one reaches --archive-size. The descriptor of an attachment names the archive that holds it. An archive that hasn't been finished (e.g. because the run has been interrupted) is repaired by the next run with the same OUTPUT_DIRECTORY: the incomplete entry at its end is cut off, and the archive is finished. Until then, a tar archive is readable up to its last complete entry, while a ZIP archive lacks the index of its entries - use 'tar' if that's a concern. Can't be used with --dedup or --sync-attachments. Valid values: dir, zip, tar."
+    )
+    String outputFormatStr;
+    public OutputFormat outputFormat;
+
+    public enum OutputFormat {
+        DIR, ZIP, TAR
+    }
+
+    @Option(
+            names = {"--archive-size"},
+            defaultValue = "1G",
+            paramLabel = "SIZE", description = "Max size of an archive, when attachments are saved to archives (see --output-format). Specify value in bytes or use suffix k, M or G."
+    )
+    String archiveSizeStr;
+    public long archiveSize;
+
+    @Option(
+            names = {"--metrics-json"},
+            paramLabel = "FILE", description = "Save metrics of the run to FILE in JSON format: time spent in every processing stage (getting, parsing, saving, inserting and labelling email messages) and in Gmail API requests (count, total, p50/p95/p99 and max), bytes processed by the stages, and Gmail API calls by method. The file is updated every --metrics-interval seconds while the run lasts, and a breakdown of time per stage is printed at the end of the run."
+    )
+    public Path metricsJsonFile;
+
+    @Option(
+            names = {"--metrics-prometheus"},
+            paramLabel = "FILE", description = "Save metrics of the run (see --metrics-json) to FILE in Prometheus text exposition format (e.g. to be picked up by node_exporter's textfile collector)."
+    )
+    public Path metricsPrometheusFile;
+
+    @Option(
+            names = {"--metrics-interval"},
+            defaultValue = "10",
+            paramLabel = "SECONDS", description = "Update metrics files every SECONDS seconds."
+    )
+    public int metricsIntervalSeconds;
+    public boolean metricsEnabled;
+
+    @Option(
+            names = {"--log-level"},
+            defaultValue = "detail",
+            paramLabel = "LEVEL", description = "Print only output lines of LEVEL or higher: 'error', 'warn', 'info' (overall progress), 'detail' (processing of every email message) or 'debug'. Output is printed in the background, so that processing of email messages never waits for it - when the output can't keep up, lines below 'warn' level are dropped."
+    )
+    String logLevelStr;
+    public Log.Level logLevel;
+
+    @Option(
+            names = {"--log-format"},
+            defaultValue = "text",
+            paramLabel = "FORMAT", description = "Format of output lines: 'text', or 'json' (a JSON object per line, with time, level, thread and message fields)."
+    )
+    String logFormatStr;
+    public Log.Format logFormat;
+
+    @Option(
+            names = {"--progress-interval"},
+            defaultValue = "10",
+            paramLabel = "SECONDS", description = "Print overall progress of the run (number of processed emails, throughput and ETA) every SECONDS seconds. Use 0 to not print it."
+    )
+    public int progressIntervalSeconds;
+
     @Option(
             names = {"--only-check-auth"},
             help = true,  // Disable requested option validation
@@ -136,6 +346,20 @@ public class Options {
         )
         String maxSizeStr;
         public long maxSize;
+
+        /**
+         * Check if a part of email message (with the given filename, MIME type and size in bytes) is an attachment to extract.
+         */
+        public boolean matches(String filename, String mimeType, Long size) {
+            if (filename == null || filename.isEmpty() ||
+                    mimeType == null || mimeType.isEmpty() || mimeType.contains("multipart") ||
+                    size == null)
+                return false;
+            return filenameRegex.matcher(filename).matches() &&
+                    mimeTypeRegex.matcher(mimeType).matches() &&
+                    (minSize == 0 || size >= minSize) &&
+                    (maxSize == 0 || size <= maxSize);
+        }
     }
 
 
@@ -159,6 +383,84 @@ public class Options {
 
         outputDir = outputDir.toAbsolutePath();
         modifyGmail = !noModifyGmail;
+        for (String algorithm : digestAlgorithms) {
+            try {
+                MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException exc) {
+                throw new ParameterException(spec.commandLine(), "Invalid argument value: digest algorithm '" + algorithm + "' is not available");
+            }
+        }
+        spillThreshold = sizeStrToLong(spillThresholdStr);
+        if (tempDir != null) tempDir = tempDir.toAbsolutePath();
+        if (incrementalStateFile != null) incrementalStateFile = incrementalStateFile.toAbsolutePath();
+        if (planIndexFile != null) planIndexFile = planIndexFile.toAbsolutePath();
+        if (metadataIndexFile != null) {
+            metadataIndexFile = metadataIndexFile.toAbsolutePath();
+            if (!metadataIndexFile.toFile().exists())
+                throw new ParameterException(spec.commandLine(), "Invalid argument value: metadata index file '" + metadataIndexFile + "' doesn't exist");
+        }
+        if (metricsJsonFile != null) metricsJsonFile = metricsJsonFile.toAbsolutePath();
+        if (metricsPrometheusFile != null) metricsPrometheusFile = metricsPrometheusFile.toAbsolutePath();
+        metricsEnabled = metricsJsonFile != null || metricsPrometheusFile != null;
+        if (metricsIntervalSeconds < 1)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: metrics-interval must be at least 1");
+        if (dedupStoreDir != null) {
+            dedupStoreDir = dedupStoreDir.toAbsolutePath();
+            dedup = true;
+        }
+        long chunkSize = sizeStrToLong(uploadChunkSizeStr);
+        long chunkSizeUnit = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+        chunkSize = Math.max(chunkSizeUnit, (chunkSize + chunkSizeUnit - 1) / chunkSizeUnit * chunkSizeUnit);  // Round up to a multiple of MINIMUM_CHUNK_SIZE
+        if (chunkSize > Integer.MAX_VALUE / 2)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: upload-chunk-size is too large");
+        uploadChunkSize = (int) chunkSize;
+        if (quotaUnitsPerSecond < 1)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: quota-rate must be at least 1");
+        if (interMessageWait != 0)
+            System.err.println("WARNING: --inter-message-wait option is deprecated and ignored - requests are throttled according to --quota-rate option.");
+        try {
+            fetchStrategy = FetchStrategy.valueOf(fetchStrategyStr.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: fetch-strategy must be one of: metadata, raw, auto");
+        }
+        try {
+            layout = Layout.valueOf(layoutStr.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: layout must be one of: flat, date, hash");
+        }
+        try {
+            outputFormat = OutputFormat.valueOf(outputFormatStr.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: output-format must be one of: dir, zip, tar");
+        }
+        archiveSize = sizeStrToLong(archiveSizeStr);
+        if (archiveSize < 1)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: archive-size must be at least 1");
+        if (outputFormat != OutputFormat.DIR && (dedup || syncAttachments))
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: output-format " + outputFormatStr + " can't be used with --dedup or --sync-attachments");
+        try {
+            logLevel = Log.Level.valueOf(logLevelStr.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: log-level must be one of: error, warn, info, detail, debug");
+        }
+        try {
+            logFormat = Log.Format.valueOf(logFormatStr.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: log-format must be one of: text, json");
+        }
+        if (progressIntervalSeconds < 0)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: progress-interval can't be negative");
+        if (metadataBatchSize < 1 || metadataBatchSize > GmailAttachmentsExtractor.MAX_BATCH_SIZE)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: metadata-batch-size must be between 1 and " + GmailAttachmentsExtractor.MAX_BATCH_SIZE);
+        if (parallelism < 1)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: parallelism must be at least 1");
+        if (compress && dedup)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: compress can't be used with --dedup");
+        if (compressionThreads < 0)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: compression-threads can't be negative");
+        if (compressionThreads == 0) compressionThreads = Runtime.getRuntime().availableProcessors();
+        if (attachmentDownloads < 1)
+            throw new ParameterException(spec.commandLine(), "Invalid argument value: attachment-downloads must be at least 1");
 
         // Attachment Filter Options
         if (!Objects.equals(filter.mimeTypeRegexStr, DEFAULT_MIME_TYPE_REGEX_STR) && !filter.mimeTypeRegexStr.startsWith("^("))
@@ -0,0 +1,65 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+
+/**
+ * OutputSink is where extracted attachments get saved - files in the output directory (FileSystemSink), or entries
+ * of archives (ArchiveSink). Attachments and their directories are identified by their paths in the output directory,
+ * whether the files actually exist or not, so the layout of the output is the same for every sink.
+ * <p>
+ * An attachment is saved in three steps: its path is taken with createFile, its content is written to the stream
+ * returned by openFile, and then it's either kept with commit, or dropped with delete. Methods can be called by many
+ * threads at the same time, for different files - but the thread that opens a file has to write, close, and commit
+ * or delete it, without waiting for other files in between (also when saving fails), as the sink may keep resources
+ * shared by all files (e.g. the current archive) for that file until then.
+ */
+public interface OutputSink extends Closeable {
+    /**
+     * Create the directory (and its parents) if it doesn't exist - e.g. directory of the output layout.
+     */
+    void createDirectories(Path dir) throws IOException;
+
+    /**
+     * Create new directory in the parent directory, named name or name followed by a number from 2 to maxNum.
+     * Returns null if all of those names are taken.
+     */
+    Path createDirectory(Path parent, String name, int maxNum) throws IOException;
+
+    /**
+     * Create new file in the directory, named name or name followed by a number from 2 to maxNum.
+     */
+    Path createFile(Path dir, String name, int maxNum) throws IOException;
+
+    /**
+     * Release the directory created with createDirectory, when no more files are going to be created in it (e.g. all
+     * attachments of its email message have been saved) - so that the sink doesn't keep names of its files in memory.
+     */
+    void releaseDirectory(Path dir);
+
+    /**
+     * Open stream writing content of the file created with createFile. expectedSize is the approximate size of the
+     * content (e.g. size of the attachment before compression), or -1 if unknown - it's only a hint. Written file is
+     * synced to disk with syncGroup, if it's not null and the sink supports it.
+     */
+    OutputStream openFile(Path file, long expectedSize, FileSyncGroup syncGroup) throws IOException;
+
+    /**
+     * Get size of the written (but not yet committed) file.
+     */
+    long size(Path file) throws IOException;
+
+    /**
+     * Keep the written file. Must be called after the stream returned by openFile has been closed. Returns the archive
+     * the file has been added to, or null if the file is saved on its own.
+     */
+    Path commit(Path file) throws IOException;
+
+    /**
+     * Drop the file, whether it has been written completely or not.
+     */
+    void delete(Path file) throws IOException;
+}
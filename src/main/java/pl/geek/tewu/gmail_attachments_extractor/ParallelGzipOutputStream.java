@@ -0,0 +1,148 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * ParallelGzipOutputStream writes data in gzip format, compressing it in blocks on the given executor - so that
+ * the thread writing the data only calculates its checksum, and several blocks (also of different streams)
+ * are compressed at the same time. Each block is compressed with the end of the previous block as the dictionary
+ * (like pigz does), so the compression ratio is nearly the same as of GZIPOutputStream. The output is a single
+ * gzip member, readable by any gzip implementation.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+    public static final int BLOCK_SIZE = 256 * 1024;
+    public static final int DICTIONARY_SIZE = 32 * 1024;  // Max distance of deflate back-references
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};  // No file name, no modification time, unknown OS
+
+    private final ExecutorService executor;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();  // Blocks being compressed, in order
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private byte[] dictionary;  // End of the previous block
+    private long size = 0;
+    private boolean closed = false;
+
+
+    /**
+     * Create stream compressing blocks on the executor, with compression level from 0 to 9 (or Deflater.DEFAULT_COMPRESSION).
+     * At most maxPendingBlocks blocks are being compressed at the same time - writing waits until the oldest of them is done.
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int level, int maxPendingBlocks) throws IOException {
+        super(out);
+        this.executor = executor;
+        this.level = level;
+        this.maxPendingBlocks = maxPendingBlocks;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        crc.update(b, off, len);
+        size += len;
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) submitBlock(false);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();  // Not completed block stays - compressing small blocks would spoil the compression ratio
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            submitBlock(true);
+            while (!pendingBlocks.isEmpty())
+                writeBlock(pendingBlocks.poll());
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) size);  // Size modulo 2^32
+        } finally {
+            for (Future<byte[]> pendingBlock : pendingBlocks)
+                pendingBlock.cancel(true);
+            pendingBlocks.clear();
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] input = block;
+        int length = blockLength;
+        byte[] blockDictionary = dictionary;
+        pendingBlocks.add(executor.submit(() -> compress(input, length, blockDictionary, last)));
+        if (!last) {
+            dictionary = Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+        }
+        while (pendingBlocks.size() > maxPendingBlocks)
+            writeBlock(pendingBlocks.poll());
+    }
+
+    private void writeBlock(Future<byte[]> pendingBlock) throws IOException {
+        try {
+            out.write(pendingBlock.get());
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException exc) {
+            throw new IOException("Compression failed", exc.getCause());
+        }
+    }
+
+    // Compress the block as raw deflate data - blocks other than the last one end with a sync flush, so that their outputs can be concatenated
+    private byte[] compress(byte[] input, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(input, 0, length);
+            AccessibleByteArrayOutputStream output = new AccessibleByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(length / 4, 1024) + 64];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished())
+                    output.write(buffer, 0, deflater.deflate(buffer));
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+}
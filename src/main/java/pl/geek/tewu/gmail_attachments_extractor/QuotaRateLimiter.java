@@ -0,0 +1,246 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.*;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * QuotaRateLimiter is a token bucket rate limiter for Gmail API requests. Every HTTP request is charged
+ * with Gmail quota units of the API method it calls (e.g. 5 units for messages.get, 25 units for messages.insert),
+ * and is delayed until there is enough units in the bucket. The bucket is refilled with a constant rate of
+ * units per second, and is shared by all requests (and all threads) made through the Gmail client.
+ * Requests that are rejected because of exceeding the rate limit (despite the throttling), are retried after
+ * exponential back off with jitter - and all other requests are paused for that time too.
+ * <p>
+ * When Metrics are set, every API method call is counted, and time to response of every HTTP request is recorded.
+ * <p>
+ * QuotaRateLimiter is an HttpRequestInitializer, that wraps another HttpRequestInitializer (e.g. Credential).
+ */
+public class QuotaRateLimiter implements HttpRequestInitializer {
+    public static final int GMAIL_USER_UNITS_PER_SECOND = 250;  // Gmail API per-user rate limit
+    public static final Map<String, Integer> QUOTA_UNITS = new HashMap<>();
+
+    static {
+        // Based on https://developers.google.com/gmail/api/reference/quota
+        QUOTA_UNITS.put("getProfile", 1);
+        QUOTA_UNITS.put("history.list", 2);
+        QUOTA_UNITS.put("labels.list", 1);
+        QUOTA_UNITS.put("labels.get", 1);
+        QUOTA_UNITS.put("labels.create", 5);
+        QUOTA_UNITS.put("labels.update", 5);
+        QUOTA_UNITS.put("labels.delete", 5);
+        QUOTA_UNITS.put("messages.list", 5);
+        QUOTA_UNITS.put("messages.get", 5);
+        QUOTA_UNITS.put("messages.attachments.get", 5);
+        QUOTA_UNITS.put("messages.insert", 25);
+        QUOTA_UNITS.put("messages.import", 25);
+        QUOTA_UNITS.put("messages.modify", 5);
+        QUOTA_UNITS.put("messages.delete", 10);
+        QUOTA_UNITS.put("messages.trash", 5);
+        QUOTA_UNITS.put("messages.untrash", 5);
+        QUOTA_UNITS.put("messages.send", 100);
+        QUOTA_UNITS.put("messages.batchModify", 50);
+        QUOTA_UNITS.put("messages.batchDelete", 50);
+    }
+
+    private final HttpRequestInitializer delegate;
+    private final double unitsPerNano;
+    private final double capacity;
+    private double availableUnits;
+    private long lastRefillNanos;  // Can be in the future, when requests are paused
+    private volatile Metrics metrics;
+
+
+    public QuotaRateLimiter(HttpRequestInitializer delegate, int unitsPerSecond) {
+        if (unitsPerSecond <= 0) throw new IllegalArgumentException("unitsPerSecond must be positive");
+        this.delegate = delegate;
+        this.unitsPerNano = unitsPerSecond / 1e9;
+        this.capacity = unitsPerSecond;  // Allow bursts of up to one second worth of units
+        this.availableUnits = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) delegate.initialize(request);
+
+        final HttpExecuteInterceptor origInterceptor = request.getInterceptor();
+        final long[] executeStartNanos = new long[1];
+        request.setInterceptor(req -> {
+            // Interceptor is called before every execution of the request (including retries). Requests in
+            // a batch are charged individually - batch request calls interceptors of all requests it contains
+            String apiMethodName = apiMethodName(req.getRequestMethod(), req.getUrl());
+            acquire(getQuotaUnits(apiMethodName));
+            Metrics metrics = this.metrics;
+            if (metrics != null && apiMethodName != null) metrics.countApiCall(apiMethodName);
+            if (origInterceptor != null) origInterceptor.intercept(req);
+            executeStartNanos[0] = System.nanoTime();
+        });
+        final HttpResponseInterceptor origResponseInterceptor = request.getResponseInterceptor();
+        request.setResponseInterceptor(resp -> {
+            Metrics metrics = this.metrics;
+            if (metrics != null && executeStartNanos[0] != 0) {
+                HttpRequest req = resp.getRequest();
+                String apiMethodName = apiMethodName(req.getRequestMethod(), req.getUrl());
+                if (apiMethodName == null) apiMethodName = req.getUrl().get("upload_id") != null ? "upload" : "batch";
+                metrics.apiRequest(apiMethodName).recordSince(executeStartNanos[0]);
+            }
+            if (origResponseInterceptor != null) origResponseInterceptor.interceptResponse(resp);
+        });
+        request.setUnsuccessfulResponseHandler(new RateLimitExceededHandler(request.getUnsuccessfulResponseHandler()));
+    }
+
+    /**
+     * Set Metrics to record API calls in, or null to stop recording them.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Block until the given number of quota units is available, and take them.
+     */
+    public void acquire(int units) throws InterruptedIOException {
+        if (units <= 0) return;
+        long waitNanos = reserve(units);
+        if (waitNanos > 0) {
+            Metrics metrics = this.metrics;
+            if (metrics != null) metrics.count("quota_wait_milliseconds", waitNanos / 1_000_000);
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for Gmail API quota");
+            }
+        }
+    }
+
+    /**
+     * Stop charging units to all requests for the given time, and start with an empty bucket afterwards.
+     */
+    public synchronized void pause(long millis) {
+        long until = System.nanoTime() + millis * 1_000_000;
+        if (until > lastRefillNanos) lastRefillNanos = until;
+        availableUnits = Math.min(availableUnits, 0);
+    }
+
+    // Take units from the bucket (possibly going into debt), and return how long the caller must wait to pay off the debt
+    private synchronized long reserve(int units) {
+        long now = System.nanoTime();
+        if (now > lastRefillNanos) {
+            availableUnits = Math.min(capacity, availableUnits + (now - lastRefillNanos) * unitsPerNano);
+            lastRefillNanos = now;
+        }
+        availableUnits -= units;
+        long debtNanos = availableUnits >= 0 ? 0 : (long) (-availableUnits / unitsPerNano);
+        return Math.max(0, lastRefillNanos - now) + debtNanos;
+    }
+
+
+    public static int getQuotaUnits(String apiMethodName) {
+        if (apiMethodName == null) return 0;
+        return QUOTA_UNITS.getOrDefault(apiMethodName, 0);
+    }
+
+    /**
+     * Get name of Gmail API method (e.g. "messages.get") called by the HTTP request with the given method and URL.
+     * Returns null if the request doesn't call a Gmail API method (e.g. it's a batch request, or a chunk of
+     * resumable media upload, whose method has been charged when the upload was started).
+     */
+    public static String apiMethodName(String httpMethod, GenericUrl url) {
+        if (url.get("upload_id") != null) return null;
+        String[] path = url.getRawPath().split("/");
+        int users = -1;
+        for (int i = 0; i < path.length && users == -1; i++)
+            if (path[i].equals("users")) users = i;
+        if (users == -1 || path.length < users + 3) return null;
+        String resource = path[users + 2];  // Path is .../users/{userId}/{resource}/...
+        int rest = path.length - (users + 3);
+        boolean isGet = "GET".equals(httpMethod);
+        switch (resource) {
+            case "profile":
+                return "getProfile";
+            case "history":
+                return "history.list";
+            case "labels":
+                if (rest == 0) return isGet ? "labels.list" : "labels.create";
+                return isGet ? "labels.get" : "DELETE".equals(httpMethod) ? "labels.delete" : "labels.update";
+            case "messages":
+                if (rest == 0) return isGet ? "messages.list" : "messages.insert";
+                if (rest == 1) {
+                    String name = path[users + 3];
+                    if ("POST".equals(httpMethod)) return "messages." + name;  // batchModify, batchDelete, import, send
+                    return isGet ? "messages.get" : "messages.delete";
+                }
+                if (path[users + 4].equals("attachments")) return "messages.attachments.get";
+                return "messages." + path[users + 4];  // modify, trash, untrash
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Retries requests rejected because of exceeding the rate limit, using exponential back off with jitter.
+     */
+    private class RateLimitExceededHandler implements HttpUnsuccessfulResponseHandler {
+        private final HttpUnsuccessfulResponseHandler origHandler;
+        private final BackOff backOff = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(1000)
+                .setMultiplier(2)
+                .setRandomizationFactor(0.5)
+                .setMaxIntervalMillis(64_000)
+                .setMaxElapsedTimeMillis(15 * 60_000)
+                .build();
+
+        RateLimitExceededHandler(HttpUnsuccessfulResponseHandler origHandler) {
+            this.origHandler = origHandler;
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+            if (origHandler != null && origHandler.handleResponse(request, response, supportsRetry))
+                return true;  // E.g. access token has been refreshed
+            if (!supportsRetry || !isRateLimitExceeded(response)) return false;
+            long backOffMillis = backOff.nextBackOffMillis();
+            if (backOffMillis == BackOff.STOP) return false;
+            Metrics metrics = QuotaRateLimiter.this.metrics;
+            if (metrics != null) metrics.count("rate_limited_requests", 1);
+            pause(backOffMillis);
+            return true;
+        }
+
+        private boolean isRateLimitExceeded(HttpResponse response) throws IOException {
+            if (response.getStatusCode() == 429) return true;
+            if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_FORBIDDEN) return false;
+
+            // Response with 403 status code can be caused by exceeding the rate limit, but also by many other errors,
+            // which can be distinguished only by the reason in response content. Reading the content consumes it, so
+            // if it's not a rate limit error, throw exception with the content here, as it can't be read later
+            String content = response.parseAsString();
+            GoogleJsonError details = null;
+            try {
+                details = GmailInit.JSON_FACTORY.fromString(content, GoogleJsonErrorContainer.class).getError();
+            } catch (IOException | IllegalArgumentException | NullPointerException ignored) {
+            }
+            if (details != null && details.getErrors() != null)
+                for (GoogleJsonError.ErrorInfo error : details.getErrors())
+                    if ("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason()))
+                        return true;
+            StringBuilder message = HttpResponseException.computeMessageBuffer(response);
+            if (details != null) message.append(System.lineSeparator()).append(details.toPrettyString());
+            else if (!content.isEmpty()) message.append(System.lineSeparator()).append(content);
+            throw new GoogleJsonResponseException(new HttpResponseException.Builder(response.getStatusCode(), response.getStatusMessage(), response.getHeaders()).setContent(content).setMessage(message.toString()), details);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.fasterxml.jackson.core.*;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartBody;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * RawMessage is an email message fetched from Gmail in "raw" format.
+ * The raw email message is decoded from base64url while the response is being read, without materializing
+ * the encoded message as a String or byte array, and it's parsed into MimeMessage without copying the decoded bytes.
+ * Large messages can be decoded to a (spill) file instead of memory - MimeMessage parsed from such RawMessage reads
+ * the content of its parts lazily from the file, so the message is never held on the heap as a whole.
+ */
+public class RawMessage implements Closeable {
+    public static final String RAW_FIELD_NAME = "raw";
+    public static final String ATTACHMENT_DATA_FIELD_NAME = "data";
+    public static final Base64Variant BASE64URL = new Base64Variant("BASE64URL_WITH_PADDING",
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_", true, '=', Integer.MAX_VALUE);
+    private static final JsonFactory JACKSON_FACTORY = new JsonFactory();
+
+    private final Message metadata;
+    private final byte[] content;  // null if content is stored in spill file
+    private final Path contentFile;
+    private final long contentLength;
+    private SharedFileInputStream contentFileStream;
+
+
+    private RawMessage(Message metadata, byte[] content, Path contentFile, long contentLength) {
+        this.metadata = metadata;
+        this.content = content;
+        this.contentFile = contentFile;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Read RawMessage from JSON representation of Message resource (e.g. response of messages.get with "raw" format).
+     * sizeHint is the expected size of the decoded message in bytes (e.g. Message.getSizeEstimate()), or 0 if unknown.
+     */
+    public static RawMessage read(InputStream jsonStream, int sizeHint) throws IOException {
+        // Leave some margin, in case the hint is underestimated
+        AccessibleByteArrayOutputStream content = new AccessibleByteArrayOutputStream(Math.max(sizeHint + sizeHint / 16, 32));
+        Message metadata = read(jsonStream, RAW_FIELD_NAME, content, Message.class);
+        return new RawMessage(metadata, content.getBuffer(), null, content.size());
+    }
+
+    /**
+     * Read RawMessage like read(InputStream, int) does, but store the decoded email message in spillFile,
+     * instead of memory. The file is deleted when RawMessage is closed.
+     */
+    public static RawMessage read(InputStream jsonStream, Path spillFile) throws IOException {
+        Message metadata;
+        try (OutputStream content = new BufferedOutputStream(Files.newOutputStream(spillFile), Utils.COPY_BUFFER_SIZE)) {
+            metadata = read(jsonStream, RAW_FIELD_NAME, content, Message.class);
+        } catch (IOException | RuntimeException exc) {
+            Files.deleteIfExists(spillFile);
+            throw exc;
+        }
+        return new RawMessage(metadata, null, spillFile, Files.size(spillFile));
+    }
+
+    /**
+     * Read RawMessage like read(InputStream, int) does, but if the decoded email message turns out to be larger than
+     * spillThreshold, then move it to spillFile (and store the rest of it there too). Useful when the size of
+     * the email message isn't known in advance. The file (if created) is deleted when RawMessage is closed.
+     */
+    public static RawMessage read(InputStream jsonStream, long spillThreshold, Path spillFile) throws IOException {
+        Message metadata;
+        SpillingOutputStream content = new SpillingOutputStream(spillThreshold, spillFile);
+        try (OutputStream out = content) {
+            metadata = read(jsonStream, RAW_FIELD_NAME, out, Message.class);
+        } catch (IOException | RuntimeException exc) {
+            Files.deleteIfExists(spillFile);
+            throw exc;
+        }
+        if (content.memory != null)
+            return new RawMessage(metadata, content.memory.getBuffer(), null, content.memory.size());
+        return new RawMessage(metadata, null, spillFile, Files.size(spillFile));
+    }
+
+    /**
+     * Decode attachment from JSON representation of MessagePartBody resource (response of messages.attachments.get)
+     * into the content stream, in a streaming fashion. Returns all other fields of the resource.
+     */
+    public static MessagePartBody readAttachment(InputStream jsonStream, OutputStream content) throws IOException {
+        return read(jsonStream, ATTACHMENT_DATA_FIELD_NAME, content, MessagePartBody.class);
+    }
+
+    // Decode base64url encoded field into the content stream, and parse all other fields of the JSON object into metadataClass
+    private static <T> T read(InputStream jsonStream, String contentFieldName, OutputStream content, Class<T> metadataClass) throws IOException {
+        StringWriter metadataJson = new StringWriter();
+        try (JsonParser parser = JACKSON_FACTORY.createParser(jsonStream);
+             JsonGenerator metadataGenerator = JACKSON_FACTORY.createGenerator(metadataJson)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new JsonParseException("Expected JSON object", parser.getCurrentLocation());
+            metadataGenerator.writeStartObject();
+            boolean hasContent = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (contentFieldName.equals(fieldName)) {
+                    parser.readBinaryValue(BASE64URL, content);  // Decode content (e.g. raw email message) in a streaming fashion
+                    hasContent = true;
+                } else {
+                    // Copy all other fields, to parse them into metadataClass later
+                    metadataGenerator.writeFieldName(fieldName);
+                    metadataGenerator.copyCurrentStructure(parser);
+                }
+            }
+            metadataGenerator.writeEndObject();
+            if (!hasContent) throw new IOException("Response doesn't contain '" + contentFieldName + "' field");
+        }
+        return GmailInit.JSON_FACTORY.fromString(metadataJson.toString(), metadataClass);
+    }
+
+
+    /**
+     * Get all fields of the Message resource, except the raw email message.
+     */
+    public Message getMetadata() {
+        return metadata;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public AccessibleMimeMessage toMimeMessage(Session session) throws IOException, MessagingException {
+        // MimeMessage created from SharedInputStream references the stream's content, instead of copying it
+        if (contentFile == null)
+            return new AccessibleMimeMessage(session, new SharedByteArrayInputStream(content, 0, (int) contentLength));
+        if (contentFileStream == null)
+            contentFileStream = new SharedFileInputStream(contentFile.toFile(), Utils.COPY_BUFFER_SIZE);
+        return new AccessibleMimeMessage(session, contentFileStream.newStream(0, -1));
+    }
+
+    /**
+     * Release spill file (if any). MimeMessages created from this RawMessage can't be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (contentFile == null) return;
+        try {
+            if (contentFileStream != null) contentFileStream.close();  // Closing the master stream closes the file
+        } finally {
+            contentFileStream = null;
+            Files.deleteIfExists(contentFile);
+        }
+    }
+}
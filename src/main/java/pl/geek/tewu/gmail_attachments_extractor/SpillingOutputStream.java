@@ -0,0 +1,46 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * SpillingOutputStream keeps written bytes in memory, until their number exceeds the threshold - then moves them
+ * to the file, and writes all following bytes there. After close, memory holds the bytes if they haven't been moved
+ * to the file, and is null otherwise.
+ */
+class SpillingOutputStream extends OutputStream {
+    private final long threshold;
+    private final Path file;
+    AccessibleByteArrayOutputStream memory = new AccessibleByteArrayOutputStream(32 * 1024);
+    private OutputStream fileOut;
+
+    SpillingOutputStream(long threshold, Path file) {
+        this.threshold = threshold;
+        this.file = file;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fileOut == null && memory.size() + (long) len > threshold) {
+            fileOut = new BufferedOutputStream(Files.newOutputStream(file), Utils.COPY_BUFFER_SIZE);
+            fileOut.write(memory.getBuffer(), 0, memory.size());
+            memory = null;
+        }
+        if (fileOut != null) fileOut.write(b, off, len);
+        else memory.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) fileOut.close();
+    }
+}
@@ -0,0 +1,176 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * StagedPipeline passes items through a sequence of stages. Every stage has its own pool of worker threads,
+ * and consecutive stages are connected with bounded queues - when a stage can't keep up, the stages before it
+ * block, instead of piling up items in memory.
+ * Every item goes through the stages in the order in which they were added, so for a given item, the side effects
+ * of a stage always happen after the side effects of all the stages before it.
+ */
+public class StagedPipeline<T> {
+    private static final Object END_OF_INPUT = new Object();
+    private static final long ABORT_CHECK_INTERVAL_MS = 100;  // How often threads blocked on a queue check if the pipeline has been aborted
+
+    private final ErrorHandler<T> errorHandler;
+    private final List<StageWorkers> stages = new ArrayList<>();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private boolean started = false;
+
+
+    public interface Stage<T> {
+        /**
+         * Process the item.
+         * Returns true if the item should be passed to the next stage, or false if processing of the item is done.
+         */
+        boolean process(T item) throws Exception;
+    }
+
+    public interface ErrorHandler<T> {
+        /**
+         * Handle exception thrown by a stage, while processing the item. The item isn't passed to the next stages.
+         * If the handler throws an exception, then the whole pipeline is aborted, and the exception gets rethrown by finish().
+         */
+        void handle(T item, Exception exc) throws Exception;
+    }
+
+
+    public StagedPipeline(ErrorHandler<T> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    public StagedPipeline<T> addStage(String name, int threadsCount, int queueCapacity, Stage<T> stage) {
+        if (started) throw new IllegalStateException("Can't add stage to already started pipeline");
+        stages.add(new StageWorkers(name, threadsCount, queueCapacity, stage));
+        return this;
+    }
+
+    public void start() {
+        if (stages.isEmpty()) throw new IllegalStateException("Pipeline must have at least one stage");
+        started = true;
+        for (int i = 0; i < stages.size(); i++)
+            stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1) : null);
+    }
+
+    /**
+     * Put the item into the first stage queue, blocking while the queue is full.
+     * Returns false if the pipeline has been aborted, and no more items should be submitted.
+     */
+    public boolean submit(T item) throws InterruptedException {
+        return put(stages.get(0).queue, item);
+    }
+
+    public boolean isAborted() {
+        return failure.get() != null;
+    }
+
+    /**
+     * Abort the pipeline - items that are waiting in the queues won't be processed.
+     * Workers finish after processing their current items, and threads blocked on full queues are released.
+     */
+    public void abort(Exception cause) {
+        if (!failure.compareAndSet(null, cause)) return;
+        for (StageWorkers stage : stages)
+            stage.queue.clear();
+    }
+
+    /**
+     * Wait until all submitted items are processed (or the pipeline is aborted) and all worker threads finish.
+     * Rethrows the exception that aborted the pipeline, if any.
+     */
+    public void finish() throws Exception {
+        stages.get(0).endInput();
+        for (StageWorkers stage : stages)
+            for (Thread worker : stage.workers)
+                worker.join();
+        Exception exc = failure.get();
+        if (exc != null) throw exc;
+    }
+
+    // Put the object into the queue, blocking while the queue is full. Returns false (without putting the object) if the pipeline has been aborted.
+    private boolean put(BlockingQueue<Object> queue, Object obj) throws InterruptedException {
+        while (!isAborted()) {
+            if (queue.offer(obj, ABORT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+
+    private class StageWorkers {
+        final String name;
+        final int threadsCount;
+        final BlockingQueue<Object> queue;
+        final Stage<T> stage;
+        final List<Thread> workers = new ArrayList<>();
+        final AtomicInteger runningCount = new AtomicInteger();
+
+        StageWorkers(String name, int threadsCount, int queueCapacity, Stage<T> stage) {
+            if (threadsCount < 1) throw new IllegalArgumentException("Stage must have at least one thread");
+            this.name = name;
+            this.threadsCount = threadsCount;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.stage = stage;
+        }
+
+        void start(StageWorkers next) {
+            runningCount.set(threadsCount);
+            for (int i = 1; i <= threadsCount; i++) {
+                Thread worker = new Thread(() -> work(next), "pipeline-" + name + "-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        // Tell all workers of the stage to finish, once they have processed the items that are already in the queue
+        void endInput() throws InterruptedException {
+            for (int i = 0; i < threadsCount; i++)
+                if (!put(queue, END_OF_INPUT)) return;  // Aborted - workers finish without it
+        }
+
+        @SuppressWarnings("unchecked")
+        void work(StageWorkers next) {
+            try {
+                while (!isAborted()) {
+                    Object obj = queue.poll(ABORT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (obj == null) continue;
+                    if (obj == END_OF_INPUT) break;
+                    T item = (T) obj;
+                    boolean passOn = false;
+                    try {
+                        passOn = stage.process(item);
+                    } catch (InterruptedException exc) {
+                        abort(exc);
+                    } catch (Exception exc) {
+                        try {
+                            errorHandler.handle(item, exc);
+                        } catch (Exception fatal) {
+                            abort(fatal);
+                        }
+                    }
+                    if (passOn && next != null)
+                        put(next.queue, item);
+                }
+            } catch (InterruptedException exc) {
+                abort(exc);
+            } finally {
+                // The last worker of the stage to finish, tells the workers of the next stage to finish too
+                if (runningCount.decrementAndGet() == 0 && next != null) {
+                    try {
+                        next.endInput();
+                    } catch (InterruptedException exc) {
+                        abort(exc);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+
+/**
+ * TarSink saves attachments as entries of tar archives (POSIX ustar format). Paths that don't fit in the ustar header
+ * (longer than 100 bytes, or with non-ASCII characters), and contents larger than 8 GB, are stored in pax extended
+ * headers. Headers of an entry streamed into the archive are written when the entry is finished - until then, they
+ * are replaced with zero blocks, which readers take for the end of the archive. So an archive that hasn't been finished
+ * (e.g. when the run has been interrupted) is readable up to the last complete entry.
+ */
+public class TarSink extends ArchiveSink {
+    public static final int BLOCK_SIZE = 512;
+    public static final int NAME_FIELD_LENGTH = 100;
+    public static final long MAX_USTAR_SIZE = 077777777777L;  // 11 octal digits
+
+    // Entry being written
+    private long headerPosition;
+    private long mtime;
+    private boolean sizeKnown;
+
+
+    public TarSink(Path outputDir, long maxVolumeSize, long spillThreshold, Path spillDir) {
+        super(outputDir, "tar", maxVolumeSize, spillThreshold, spillDir);
+    }
+
+
+    @Override
+    protected void startEntry(String path, long size, long crc) throws IOException {
+        mtime = System.currentTimeMillis() / 1000;
+        sizeKnown = size != -1;
+        headerPosition = getVolumeSize();
+        byte[] headers = headers(path, Math.max(size, 0), mtime);
+        write(sizeKnown ? headers : new byte[headers.length]);
+    }
+
+    @Override
+    protected void finishEntry(String path, long size, long crc) throws IOException {
+        if (!sizeKnown) {
+            // Content of streamed entries isn't larger than 8 GB in practice (Gmail limits the size of email messages) - so there's no need to reserve a pax header for the size
+            if (size > MAX_USTAR_SIZE) throw new IOException("Tar entry '" + path + "' is too large");
+            pad(size);
+            overwrite(headerPosition, headers(path, size, mtime));
+        } else {
+            pad(size);
+        }
+    }
+
+    @Override
+    protected long recoverVolume(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        byte[] block = new byte[BLOCK_SIZE];
+        long position = 0;
+        long paxSize = -1;  // Size from the pax extended header of the next entry
+        long entryStart = 0;  // Position of the headers of the next entry
+        while (position + BLOCK_SIZE <= length) {
+            file.seek(position);
+            file.readFully(block);
+            if (!isValidHeader(block)) break;  // End of archive, or headers of an unfinished entry
+            long size = parseOctal(block, 124, 12);
+            long next = position + BLOCK_SIZE + (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            if (block[156] == 'x') {
+                if (size > Integer.MAX_VALUE || next > length) break;
+                byte[] paxData = new byte[(int) size];
+                file.readFully(paxData);
+                paxSize = parsePaxSize(new String(paxData, StandardCharsets.UTF_8));
+                position = next;
+                continue;
+            }
+            if (paxSize != -1) next = position + BLOCK_SIZE + (paxSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            if (next > length) break;
+            position = next;
+            entryStart = next;
+            paxSize = -1;
+        }
+        if (entryStart + 2 * BLOCK_SIZE == length && isZero(file, entryStart, 2 * BLOCK_SIZE)) return -1;  // Finished with the end of archive marker
+        return entryStart;
+    }
+
+    @Override
+    protected void finishVolume() throws IOException {
+        write(new byte[2 * BLOCK_SIZE]);  // End of archive marker
+    }
+
+    @Override
+    protected long getEntryOverhead(String path) {
+        // Header, padding of the content, and possibly pax extended header (with its own header)
+        return 3L * BLOCK_SIZE + 2L * path.getBytes(StandardCharsets.UTF_8).length + 2L * BLOCK_SIZE;
+    }
+
+    // Headers of the entry - the ustar header, preceded by pax extended header if needed
+    private static byte[] headers(String path, long size, long mtime) {
+        StringBuilder paxRecords = new StringBuilder();
+        boolean pathFits = Utils.isAllPrintableASCII(path) && path.length() <= NAME_FIELD_LENGTH;
+        if (!pathFits) appendPaxRecord(paxRecords, "path", path);
+        if (size > MAX_USTAR_SIZE) appendPaxRecord(paxRecords, "size", Long.toString(size));
+        String name = pathFits ? path : toAsciiName(path);
+        byte[] header = header(name, size > MAX_USTAR_SIZE ? 0 : size, mtime, '0');
+        if (paxRecords.length() == 0) return header;
+        byte[] paxData = paxRecords.toString().getBytes(StandardCharsets.UTF_8);
+        int paxDataBlocks = (paxData.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        byte[] headers = new byte[(2 + paxDataBlocks) * BLOCK_SIZE];
+        System.arraycopy(header(toAsciiName("PaxHeaders/" + name), paxData.length, mtime, 'x'), 0, headers, 0, BLOCK_SIZE);
+        System.arraycopy(paxData, 0, headers, BLOCK_SIZE, paxData.length);
+        System.arraycopy(header, 0, headers, (1 + paxDataBlocks) * BLOCK_SIZE, BLOCK_SIZE);
+        return headers;
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) write(new byte[BLOCK_SIZE - remainder]);
+    }
+
+    private static byte[] header(String name, long size, long mtime, char type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        putString(header, 0, NAME_FIELD_LENGTH, name);
+        putOctal(header, 100, 8, 0644);  // Mode
+        putOctal(header, 108, 8, 0);  // Owner ID
+        putOctal(header, 116, 8, 0);  // Group ID
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, mtime);
+        header[156] = (byte) type;
+        putString(header, 257, 6, "ustar");  // Magic, followed by NUL
+        putString(header, 263, 2, "00");  // Version
+        // Checksum is calculated with the checksum field filled with spaces
+        for (int i = 148; i < 156; i++)
+            header[i] = ' ';
+        long checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xFF;
+        putString(header, 148, 8, String.format("%06o", checksum));  // 6 octal digits, NUL, and the space left from above
+        return header;
+    }
+
+    private static boolean isValidHeader(byte[] header) {
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++)
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        return checksum != 8 * ' ' && checksum == parseOctal(header, 148, 8);  // All-zero block has only the spaces of the checksum field
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length && header[i] >= '0' && header[i] <= '7'; i++)
+            value = value * 8 + (header[i] - '0');
+        return value;
+    }
+
+    private static long parsePaxSize(String records) {
+        for (String record : records.split("\n")) {
+            int equals = record.indexOf('=');
+            if (equals != -1 && record.substring(record.indexOf(' ') + 1, equals).equals("size"))
+                return Long.parseLong(record.substring(equals + 1));
+        }
+        return -1;
+    }
+
+    private static boolean isZero(RandomAccessFile file, long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        file.seek(position);
+        file.readFully(bytes);
+        for (byte b : bytes)
+            if (b != 0) return false;
+        return true;
+    }
+
+    private static void putString(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        putString(header, offset, length - 1, String.format("%0" + (length - 1) + "o", value));  // Leaves NUL at the end
+    }
+
+    // Each pax record is "LENGTH KEY=VALUE\n", where LENGTH is the length of the whole record in bytes (including its own digits)
+    private static void appendPaxRecord(StringBuilder records, String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length()) total++;  // Adding the digits added a digit
+        records.append(total).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    // Name for the ustar header field, when the path is stored in pax extended header - readers not supporting pax use it instead
+    private static String toAsciiName(String path) {
+        StringBuilder sb = new StringBuilder(Math.min(path.length(), NAME_FIELD_LENGTH));
+        for (int i = 0; i < path.length() && sb.length() < NAME_FIELD_LENGTH; i++) {
+            char c = path.charAt(i);
+            sb.append(c >= 32 && c < 127 ? c : '_');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import com.google.api.client.http.*;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+
+import java.io.IOException;
+
+
+/**
+ * UploadRetryInitializer makes chunks of resumable media uploads retried, when they fail because of a network error
+ * or a server error. Chunk requests get wrapped by MediaHttpUploader, which - when the retry is allowed - asks the server
+ * how much of the upload it has received, and resumes the upload from there (instead of starting it over).
+ * Other requests are not affected, as retrying them may not be safe (e.g. retrying messages.insert may insert the message twice).
+ * <p>
+ * UploadRetryInitializer is an HttpRequestInitializer, that wraps another HttpRequestInitializer (e.g. Credential).
+ */
+public class UploadRetryInitializer implements HttpRequestInitializer {
+    private final HttpRequestInitializer delegate;
+
+
+    public UploadRetryInitializer(HttpRequestInitializer delegate) {
+        this.delegate = delegate;
+    }
+
+
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) delegate.initialize(request);
+        // Request URL isn't known yet, when request is initialized - so the handler checks it when it's called
+        UploadChunkRetryHandler handler = new UploadChunkRetryHandler(request.getUnsuccessfulResponseHandler(), request.getIOExceptionHandler());
+        request.setUnsuccessfulResponseHandler(handler);
+        request.setIOExceptionHandler(handler);
+    }
+
+    public static boolean isUploadChunk(HttpRequest request) {
+        return request.getUrl() != null && request.getUrl().get("upload_id") != null;
+    }
+
+
+    private static class UploadChunkRetryHandler implements HttpUnsuccessfulResponseHandler, HttpIOExceptionHandler {
+        private final HttpUnsuccessfulResponseHandler origResponseHandler;
+        private final HttpIOExceptionHandler origIOExceptionHandler;
+        private final BackOff backOff = new ExponentialBackOff();
+
+        UploadChunkRetryHandler(HttpUnsuccessfulResponseHandler origResponseHandler, HttpIOExceptionHandler origIOExceptionHandler) {
+            this.origResponseHandler = origResponseHandler;
+            this.origIOExceptionHandler = origIOExceptionHandler;
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+            if (origResponseHandler != null && origResponseHandler.handleResponse(request, response, supportsRetry))
+                return true;
+            return supportsRetry && isUploadChunk(request) && response.getStatusCode() / 100 == 5 && backOff();
+        }
+
+        @Override
+        public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
+            if (origIOExceptionHandler != null && origIOExceptionHandler.handleIOException(request, supportsRetry))
+                return true;
+            return supportsRetry && isUploadChunk(request) && backOff();
+        }
+
+        private boolean backOff() throws IOException {
+            long backOffMillis = backOff.nextBackOffMillis();
+            if (backOffMillis == BackOff.STOP) return false;
+            try {
+                Thread.sleep(backOffMillis);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -2,23 +2,21 @@ package pl.geek.tewu.gmail_attachments_extractor;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.internet.MimePart;
 import javax.mail.internet.ParseException;
 import java.io.*;
-import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 
 public class Utils {
-    public static final int DIR_NAME_MAX_LEN = 100;
-    public static final int FILE_NAME_NO_EXT_MAX_LEN = 100;
     public static final int FILE_EXT_MAX_LEN = 15;
-    public static final Pattern NON_UNICODE_FS_NAME_PATTERN = Pattern.compile("[^A-Za-z0-9 _.]+");
-    public static final Pattern UNICODE_FS_NAME_PATTERN = Pattern.compile("[^\\p{Alpha}0-9 _.]+", Pattern.UNICODE_CHARACTER_CLASS);
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
     public static final Map<Character, String> JAVA_ESCAPE_SEQ_MAPPING = new HashMap<>();
 
     static {
@@ -57,94 +55,6 @@ public class Utils {
         return writer.toString();
     }
 
-    public static String removeFileSeparatorChars(String str) {
-        StringBuilder sb = new StringBuilder(str.length());
-        char c;
-        for (int i = 0; i < str.length(); i++) {
-            c = str.charAt(i);
-            if (c != '/' && c != '\\') sb.append(c);
-            else sb.append('_');
-        }
-        return sb.toString();
-    }
-
-    public static String resolvingSanitizeFileName(Path base, String fileName) {
-        Path sanitizedFilePath = sanitizingResolve(base, fileName, true);
-        return sanitizedFilePath.getFileName().toString();
-    }
-
-    public static String resolvingSanitizeDirName(Path base, String dirName) {
-        Path sanitizedDirPath = sanitizingResolve(base, dirName, false);
-        return sanitizedDirPath.getFileName().toString();
-    }
-
-    private static Path sanitizingResolve(Path base, String fsObjectName, boolean isFile) {
-        fsObjectName = removeFileSeparatorChars(fsObjectName);
-        fsObjectName = stripEnd(fsObjectName, ".", true);
-        try {
-            return resolveAndCheck(base, fsObjectName);  // Try using potentially invalid name first - e.g. Windows don't allow question mark (and some other characters) in filename, but Linux do
-        } catch (IOException | InvalidPathException e1) {
-            // If the name is invalid, apply increasingly conservative sanitization, until it becomes valid
-            try {
-                return resolveAndCheck(base, sanitize(fsObjectName, isFile, false));
-            } catch (IOException | InvalidPathException e2) {
-                try {
-                    return resolveAndCheck(base, sanitize(fsObjectName, isFile, true));
-                } catch (IOException | InvalidPathException e3) {
-                    throw new RuntimeException(e3);
-                }
-            }
-        }
-    }
-
-    private static String sanitize(String name, boolean isFile, boolean extraSafe) {
-        if (isFile) return sanitizeFileName(name, extraSafe);
-        else return sanitizeDirName(name, extraSafe);
-    }
-
-    private static String sanitizeFileName(String name, boolean extraSafe) {
-        final int dot = name.lastIndexOf('.');
-        if (dot == -1) return sanitizeFSName(name, FILE_NAME_NO_EXT_MAX_LEN, extraSafe);
-        return sanitizeFSName(name.substring(0, dot), FILE_NAME_NO_EXT_MAX_LEN, extraSafe) +
-                "." +
-                sanitizeFSName(name.substring(dot + 1), FILE_EXT_MAX_LEN, extraSafe);
-    }
-
-    private static String sanitizeDirName(String name, boolean extraSafe) {
-        return sanitizeFSName(name, DIR_NAME_MAX_LEN, extraSafe);
-    }
-
-    private static String sanitizeFSName(String name, int maxLen, boolean extraSafe) {
-        if (name.length() > maxLen)
-            name = name.substring(0, maxLen);
-        name = (extraSafe ? NON_UNICODE_FS_NAME_PATTERN : UNICODE_FS_NAME_PATTERN).matcher(name).replaceAll("_");
-        name = stripEnd(name, ".", true);
-        return name;
-    }
-
-    public static String stripEnd(final String str, final String stripChars, final boolean stripWhitespace) {
-        int end = str == null ? 0 : str.length();
-        if (end == 0)
-            return str;
-
-        if ((stripChars == null || stripChars.isEmpty()) && !stripWhitespace) {
-            return str;
-        } else if (stripChars == null || stripChars.isEmpty()) {
-            while (end != 0 && Character.isWhitespace(str.charAt(end - 1)))
-                end--;
-        } else {
-            while (end != 0 && (stripChars.indexOf(str.charAt(end - 1)) != -1 || (stripWhitespace && Character.isWhitespace(str.charAt(end - 1)))))
-                end--;
-        }
-        return str.substring(0, end);
-    }
-
-    private static Path resolveAndCheck(Path base, String fsObjectName) throws IOException {
-        Path path = base.resolve(fsObjectName);  // Resolve
-        path.toFile().getCanonicalFile();  // Check, and throw exception if invalid
-        return path;
-    }
-
     public static String humanReadableByteCount(long bytes) {
         if (-1e3 < bytes && bytes < 1e3)
             return bytes + " bytes";
@@ -156,40 +66,33 @@ public class Utils {
         return String.format("%.2f %cB", bytes / 1000.0, ci.current());
     }
 
+    public static String humanReadableDuration(long seconds) {
+        if (seconds < 60)
+            return seconds + " s";
+        if (seconds < 3600)
+            return String.format("%d min %d s", seconds / 60, seconds % 60);
+        return String.format("%d h %d min", seconds / 3600, seconds % 3600 / 60);
+    }
+
     /***** IO Utils *****/
 
-    public static void copyInputStreamToFile(final InputStream source, final File destination) throws IOException {
-        try (OutputStream out = openOutputStream(destination, false)) {
-            com.google.api.client.util.IOUtils.copy(source, out);
+    public static long copy(final InputStream source, final OutputStream destination) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long count = 0;
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            destination.write(buffer, 0, read);
+            count += read;
         }
+        return count;
     }
 
-    public static FileOutputStream openOutputStream(final File file, final boolean append) throws IOException {
-        if (file.exists()) {
-            if (file.isDirectory()) {
-                throw new IOException("File '" + file + "' exists but is a directory");
-            }
-            if (!file.canWrite()) {
-                throw new IOException("File '" + file + "' cannot be written to");
-            }
-        } else {
-            final File parent = file.getParentFile();
-            if (parent != null) {
-                if (!parent.mkdirs() && !parent.isDirectory()) {
-                    throw new IOException("Directory '" + parent + "' could not be created");
-                }
-            }
+    public static void deleteRecursively(final Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)  // Children before parents
+                Files.delete(p);
         }
-        return new FileOutputStream(file, append);
-    }
-
-    public static String findUniqueFileName(Path dirPath, String fileName, int maxNum) {
-        int i = 2;
-        Path path = dirPath.resolve(fileName);
-        while (path.toFile().exists() && i <= maxNum)
-            path = dirPath.resolve(fileName + " " + i++);
-        if (path.toFile().exists()) throw new RuntimeException("Can't find unique file patch for '" + dirPath.resolve(fileName) + "'");
-        return path.getFileName().toString();
     }
 
     /***** Mail *****/
@@ -197,7 +100,32 @@ public class Utils {
     public static final String CONTENT_DISPOSITION_HNAME = "Content-Disposition";
     public static final String CONTENT_TYPE_FILENAME_FIELD_PREFIX = "name=";
     public static final String CONTENT_DISPOSITION_FILENAME_FIELD_PREFIX = "filename=";
+    // Content that is compressed already (images other than bitmaps, audio other than uncompressed PCM, video, archives, PDF and office documents)
+    public static final Pattern COMPRESSED_MIME_TYPE_REGEX = Pattern.compile("^(image/(?!(tiff|bmp|x-ms-bmp|svg\\+xml|x-icon)\\b)|video/|audio/(?!(wav|x-wav|wave|aiff|x-aiff)\\b)|" +
+            "application/(zip|x-zip-compressed|gzip|x-gzip|x-bzip2|x-xz|zstd|x-7z-compressed|x-rar-compressed|vnd\\.rar|java-archive|epub\\+zip|pdf|vnd\\.openxmlformats-|vnd\\.oasis\\.opendocument\\.|vnd\\.android\\.package-archive))", Pattern.CASE_INSENSITIVE);
+    public static final Set<String> COMPRESSED_FILE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "apk", "epub", "pdf", "docx", "xlsx", "pptx", "odt", "ods", "odp",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "m4a", "ogg", "opus", "flac", "mp4", "m4v", "mov", "avi", "mkv", "webm"));
+
 
+    /**
+     * Check if content of an attachment is (most likely) compressed already, judging by its MIME type or file name extension.
+     */
+    public static boolean isCompressedContent(String mimeType, String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot != -1 && COMPRESSED_FILE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT))) return true;
+        return mimeType != null && COMPRESSED_MIME_TYPE_REGEX.matcher(mimeType).find();
+    }
+
+    /**
+     * Estimate size of the decoded content of a part, from the size of its (encoded) content - or return -1 if it's unknown.
+     */
+    public static long estimateDecodedSize(BodyPart part) throws MessagingException {
+        long size = part.getSize();
+        if (size == -1) return -1;
+        String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+        return "base64".equalsIgnoreCase(encoding) ? size * 3 / 4 : size;  // Line breaks of base64 make it a slight overestimate
+    }
 
     /**
      * Get file name of a part.
@@ -230,7 +158,9 @@ public class Utils {
             part.setHeader(CONTENT_TYPE_HNAME, cTypePrefix + quotedFileName);
             part.setHeader(CONTENT_DISPOSITION_HNAME, cDispPrefix + quotedFileName);
             part.setFileName(fileName);
-            System.out.println("\nWARNING: Attachment headers had to be force changed to fix not quoted file names:\n    " + CONTENT_TYPE_HNAME + " header changed from\n" + cType + "\n    to\n" + part.getHeader(CONTENT_TYPE_HNAME)[0] + "\n    and " + CONTENT_DISPOSITION_HNAME + " header changed from\n" + cDisp + "\n    to\n" + part.getHeader(CONTENT_DISPOSITION_HNAME)[0] + "\n");
+            Log.warn("WARNING: Attachment headers had to be force changed to fix not quoted file names" + (Log.isEnabled(Log.Level.DEBUG) ? "" : " (use --log-level debug to see the changed headers)"));
+            if (Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("    " + CONTENT_TYPE_HNAME + " header changed from\n" + cType + "\n    to\n" + part.getHeader(CONTENT_TYPE_HNAME)[0] + "\n    and " + CONTENT_DISPOSITION_HNAME + " header changed from\n" + cDisp + "\n    to\n" + part.getHeader(CONTENT_DISPOSITION_HNAME)[0] + "\n");
         } catch (Exception exc) {
             throw new RuntimeException("Unable to fix presumably not quoted file name of a BodyPart", exc);
         }
@@ -0,0 +1,208 @@
+package pl.geek.tewu.gmail_attachments_extractor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * ZipSink saves attachments as entries of ZIP archives. Entries are stored without compression (attachments are
+ * mostly compressed already), so adding an entry is a plain copy of its content. Archives larger than 4 GB,
+ * or with more than 65535 entries, use ZIP64 extensions. The local header of an entry streamed into the archive is
+ * written when the entry is finished (so there are no data descriptors) - until then, it's replaced with zeros.
+ * The index of entries (central directory) is written when the archive is finished - an archive that hasn't been
+ * finished (e.g. when the run has been interrupted) is finished by the next run.
+ */
+public class ZipSink extends ArchiveSink {
+    public static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    public static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+    public static final int UTF8_FLAG = 0x0800;
+    public static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    public static final int LOCAL_HEADER_SIZE = 30;  // Without the name
+
+    private final List<CentralRecord> centralRecords = new ArrayList<>();  // Entries of the current volume
+    // Entry being written
+    private long headerPosition;
+    private int entryTime;
+    private boolean sizeKnown;
+
+
+    public ZipSink(Path outputDir, long maxVolumeSize, long spillThreshold, Path spillDir) {
+        super(outputDir, "zip", maxVolumeSize, spillThreshold, spillDir);
+    }
+
+
+    private static class CentralRecord {
+        final byte[] name;
+        final int dosTime;
+        final long crc;
+        final long size;
+        final long offset;
+
+        CentralRecord(byte[] name, int dosTime, long crc, long size, long offset) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+
+    @Override
+    protected void startEntry(String path, long size, long crc) throws IOException {
+        if (size >= ZIP64_LIMIT) throw new IOException("ZIP entry '" + path + "' is too large");
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        sizeKnown = size != -1;
+        headerPosition = getVolumeSize();
+        entryTime = dosTime(System.currentTimeMillis());
+        write(sizeKnown ? localHeader(name, entryTime, crc, size) : new byte[LOCAL_HEADER_SIZE + name.length]);
+    }
+
+    @Override
+    protected void finishEntry(String path, long size, long crc) throws IOException {
+        if (size >= ZIP64_LIMIT) throw new IOException("ZIP entry '" + path + "' is too large");
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        if (!sizeKnown) overwrite(headerPosition, localHeader(name, entryTime, crc, size));
+        centralRecords.add(new CentralRecord(name, entryTime, crc, size, headerPosition));
+    }
+
+    @Override
+    protected long recoverVolume(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length >= 22) {
+            file.seek(length - 22);
+            if (Integer.reverseBytes(file.readInt()) == 0x06054b50) return -1;  // Finished with the end of central directory record
+        }
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE);
+        long position = 0;
+        while (position + LOCAL_HEADER_SIZE <= length) {
+            file.seek(position);
+            file.readFully(header.array());
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) break;  // Start of central directory, or header of an unfinished entry
+            long size = header.getInt(18) & ZIP64_LIMIT;
+            int nameLength = header.getShort(26) & 0xFFFF;
+            int extraLength = header.getShort(28) & 0xFFFF;
+            long next = position + LOCAL_HEADER_SIZE + nameLength + extraLength + size;
+            if (next > length) break;
+            byte[] name = new byte[nameLength];
+            file.readFully(name);
+            centralRecords.add(new CentralRecord(name, header.getInt(10), header.getInt(14) & ZIP64_LIMIT, size, position));
+            position = next;
+        }
+        return position;
+    }
+
+    @Override
+    protected void volumeTruncated(long size) {
+        while (!centralRecords.isEmpty() && centralRecords.get(centralRecords.size() - 1).offset >= size)
+            centralRecords.remove(centralRecords.size() - 1);
+    }
+
+    @Override
+    protected void finishVolume() throws IOException {
+        long directoryOffset = getVolumeSize();
+        for (CentralRecord record : centralRecords) {
+            boolean zip64 = record.offset >= ZIP64_LIMIT;
+            ByteBuffer header = newBuffer(46 + record.name.length + (zip64 ? 12 : 0));
+            header.putInt(0x02014b50);
+            header.putShort((short) 45);  // Version made by: 4.5, MS-DOS attributes
+            header.putShort((short) (zip64 ? 45 : 10));  // Version needed to extract
+            header.putShort((short) UTF8_FLAG);
+            header.putShort((short) 0);  // Stored
+            header.putInt(record.dosTime);
+            header.putInt((int) record.crc);
+            header.putInt((int) record.size);  // Compressed size
+            header.putInt((int) record.size);
+            header.putShort((short) record.name.length);
+            header.putShort((short) (zip64 ? 12 : 0));  // Extra field length
+            header.putShort((short) 0);  // Comment length
+            header.putShort((short) 0);  // Disk number
+            header.putShort((short) 0);  // Internal attributes
+            header.putInt(0);  // External attributes
+            header.putInt((int) (zip64 ? ZIP64_LIMIT : record.offset));
+            header.put(record.name);
+            if (zip64) {
+                header.putShort((short) 0x0001);  // ZIP64 extended information
+                header.putShort((short) 8);
+                header.putLong(record.offset);
+            }
+            write(header.array());
+        }
+        long directorySize = getVolumeSize() - directoryOffset;
+        int entries = centralRecords.size();
+        if (entries >= ZIP64_ENTRIES_LIMIT || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT) {
+            long zip64EndPosition = getVolumeSize();
+            ByteBuffer zip64End = newBuffer(56 + 20);
+            zip64End.putInt(0x06064b50);
+            zip64End.putLong(44);  // Size of the rest of the record
+            zip64End.putShort((short) 45);  // Version made by
+            zip64End.putShort((short) 45);  // Version needed to extract
+            zip64End.putInt(0);  // Number of this disk
+            zip64End.putInt(0);  // Disk with the central directory
+            zip64End.putLong(entries);  // Entries on this disk
+            zip64End.putLong(entries);
+            zip64End.putLong(directorySize);
+            zip64End.putLong(directoryOffset);
+            // Locator
+            zip64End.putInt(0x07064b50);
+            zip64End.putInt(0);  // Disk with the ZIP64 end of central directory record
+            zip64End.putLong(zip64EndPosition);
+            zip64End.putInt(1);  // Number of disks
+            write(zip64End.array());
+        }
+        ByteBuffer end = newBuffer(22);
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);  // Number of this disk
+        end.putShort((short) 0);  // Disk with the central directory
+        end.putShort((short) Math.min(entries, ZIP64_ENTRIES_LIMIT));  // Entries on this disk
+        end.putShort((short) Math.min(entries, ZIP64_ENTRIES_LIMIT));
+        end.putInt((int) Math.min(directorySize, ZIP64_LIMIT));
+        end.putInt((int) Math.min(directoryOffset, ZIP64_LIMIT));
+        end.putShort((short) 0);  // Comment length
+        write(end.array());
+        centralRecords.clear();
+    }
+
+    @Override
+    protected long getEntryOverhead(String path) {
+        // Local header and central directory record (both with the path, and possibly ZIP64 extra field)
+        return 2L * path.getBytes(StandardCharsets.UTF_8).length + 128;
+    }
+
+    private static byte[] localHeader(byte[] name, int dosTime, long crc, long size) {
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + name.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) 10);  // Version needed to extract: 1.0
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) 0);  // Stored
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) size);  // Compressed size
+        header.putInt((int) size);
+        header.putShort((short) name.length);
+        header.putShort((short) 0);  // Extra field length
+        header.put(name);
+        return header.array();
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Date and time in MS-DOS format - local time, with 2 seconds precision
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) return (1 << 21) | (1 << 16);  // 1980-01-01
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+}